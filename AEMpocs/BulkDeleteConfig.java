@@ -0,0 +1,36 @@
+package com.adobe.practise.website.core.service.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
+
+@ObjectClassDefinition(name = "Bulk Page Delete Configuration")
+public @interface BulkDeleteConfig {
+
+    String REFERENCES_IGNORE = "ignore";
+    String REFERENCES_SKIP = "skip";
+    String REFERENCES_QUARANTINE = "quarantine";
+
+    @AttributeDefinition(name = "Batch Size", description = "Number of pages deleted per commit")
+    int batchSize() default 200;
+
+    @AttributeDefinition(name = "Window Size", description = "Number of candidate pages fetched per query, bounding the memory used by a purge")
+    int windowSize() default 1000;
+
+    @AttributeDefinition(name = "Referenced Pages",
+            description = "What to do with candidates that other pages still link to: skip keeps them, quarantine keeps and "
+                    + "marks them for review, ignore deletes them anyway",
+            options = {
+                    @Option(label = "Skip", value = BulkDeleteConfig.REFERENCES_SKIP),
+                    @Option(label = "Quarantine", value = BulkDeleteConfig.REFERENCES_QUARANTINE),
+                    @Option(label = "Ignore", value = BulkDeleteConfig.REFERENCES_IGNORE)
+            })
+    String referencePolicy() default REFERENCES_SKIP;
+
+    @AttributeDefinition(name = "Checkpoint Path", description = "Repository path under which deletion progress is recorded")
+    String checkpointPath() default "/var/practise/purge/checkpoints";
+
+    @AttributeDefinition(name = "Resume After (minutes)",
+            description = "A running checkpoint without a commit for this long is considered interrupted and is resumed")
+    int resumeAfterMinutes() default 10;
+}
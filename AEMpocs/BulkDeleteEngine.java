@@ -0,0 +1,339 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.jcr.resource.api.JcrResourceConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.service.BulkDeleteReport;
+import com.adobe.practise.website.core.service.config.BulkDeleteConfig;
+
+/**
+ * Deletes pages in fixed size batches with one commit per batch.
+ *
+ * <p>Progress is written to a checkpoint node under {@code /var} in the same commit as each batch.
+ * Deleted pages drop out of the candidate query, so an interrupted run is resumed by running the
+ * same query again with the cutoff stored in its checkpoint.</p>
+ */
+@Component(service = BulkDeleteEngine.class)
+@Designate(ocd = BulkDeleteConfig.class)
+public class BulkDeleteEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkDeleteEngine.class);
+
+    static final String STATUS_RUNNING = "RUNNING";
+    static final String STATUS_COMPLETED = "COMPLETED";
+    static final String STATUS_FAILED = "FAILED";
+
+    private static final String PN_STATUS = "status";
+    private static final String PN_ROOT_PATH = "rootPath";
+    private static final String PN_CUTOFF = "cutoff";
+    private static final String PN_PAGES_SCANNED = "pagesScanned";
+    private static final String PN_PAGES_DELETED = "pagesDeleted";
+    private static final String PN_BATCHES = "batchesCommitted";
+    private static final String PN_LAST_PATH = "lastPath";
+    private static final String PN_STARTED = "started";
+    private static final String PN_LAST_COMMIT = "lastCommit";
+    private static final String PN_PAGES_PER_SECOND = "pagesPerSecond";
+    private static final String PN_PAGES_HELD_BACK = "pagesHeldBack";
+
+    /** Properties set on the content of a quarantined page. */
+    static final String PN_QUARANTINED = "purgeQuarantined";
+    static final String PN_QUARANTINE_REFERRERS = "purgeReferrers";
+
+    @Reference
+    private PurgeMetrics purgeMetrics;
+
+    @Reference
+    private PageReferenceIndex pageReferenceIndex;
+
+    private int batchSize;
+    private int windowSize;
+    private String checkpointPath;
+    private int resumeAfterMinutes;
+    private String referencePolicy;
+
+    @Activate
+    @Modified
+    protected void activate(BulkDeleteConfig config) {
+        this.batchSize = Math.max(1, config.batchSize());
+        this.windowSize = Math.max(1, config.windowSize());
+        this.checkpointPath = config.checkpointPath();
+        this.resumeAfterMinutes = config.resumeAfterMinutes();
+        this.referencePolicy = config.referencePolicy();
+        LOG.info("Bulk delete engine activated with batch size: {}, checkpoint path: {}", batchSize, checkpointPath);
+    }
+
+    /**
+     * Returns the configured number of pages deleted per commit.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the configured number of candidates fetched per query window.
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Returns the checkpoint name of a deletion job over the given root path.
+     */
+    public static String jobName(String prefix, String rootPath) {
+        return prefix + rootPath.replace('/', '-');
+    }
+
+    /**
+     * Returns the cutoff of an unfinished run of the job, or null if the job has no checkpoint to resume.
+     */
+    public Calendar getResumeCutoff(ResourceResolver resolver, String jobName) {
+        Resource checkpoint = resolver.getResource(checkpointPath + "/" + jobName);
+        if (checkpoint == null) {
+            return null;
+        }
+        ValueMap properties = checkpoint.getValueMap();
+        return STATUS_COMPLETED.equals(properties.get(PN_STATUS, String.class)) ? null : properties.get(PN_CUTOFF, Calendar.class);
+    }
+
+    /**
+     * Returns the root paths of jobs with the given prefix whose run stopped without completing and
+     * has not committed anything recently, e.g. because the instance was restarted or failed over.
+     */
+    public List<String> getInterruptedRoots(ResourceResolver resolver, String prefix) {
+        List<String> roots = new ArrayList<>();
+        Resource checkpoints = resolver.getResource(checkpointPath);
+        if (checkpoints == null) {
+            return roots;
+        }
+        for (Resource checkpoint : checkpoints.getChildren()) {
+            ValueMap properties = checkpoint.getValueMap();
+            if (checkpoint.getName().startsWith(prefix)
+                    && STATUS_RUNNING.equals(properties.get(PN_STATUS, String.class))
+                    && isStale(properties)) {
+                roots.add(properties.get(PN_ROOT_PATH, String.class));
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Returns whether a running checkpoint has not committed anything for {@code resumeAfterMinutes}.
+     */
+    private boolean isStale(ValueMap checkpoint) {
+        Calendar lastCommit = checkpoint.get(PN_LAST_COMMIT, checkpoint.get(PN_STARTED, Calendar.class));
+        Calendar staleBefore = Calendar.getInstance();
+        staleBefore.add(Calendar.MINUTE, -resumeAfterMinutes);
+        return lastCommit != null && lastCommit.before(staleBefore);
+    }
+
+    /**
+     * Deletes the candidate pages using the configured batch size.
+     */
+    public BulkDeleteReport execute(ResourceResolver resolver, String jobName, String rootPath, Calendar cutoff,
+            Iterator<String> candidates) throws PersistenceException {
+        return execute(resolver, jobName, rootPath, cutoff, candidates, 0);
+    }
+
+    /**
+     * Deletes the candidate pages, committing every {@code batchSize} deletions together with the
+     * job checkpoint. A batch size of 0 or less uses the configured default.
+     */
+    public BulkDeleteReport execute(ResourceResolver resolver, String jobName, String rootPath, Calendar cutoff,
+            Iterator<String> candidates, int batchSize) throws PersistenceException {
+        int effectiveBatchSize = batchSize > 0 ? batchSize : this.batchSize;
+        boolean checkReferences = !BulkDeleteConfig.REFERENCES_IGNORE.equals(referencePolicy);
+        if (checkReferences && !pageReferenceIndex.isReady()) {
+            LOG.warn("Purge of {} blocked, the page reference index is {}", rootPath, pageReferenceIndex.getStatus());
+            throw new IllegalStateException("Page reference index is not ready (" + pageReferenceIndex.getStatus()
+                    + "), not purging " + rootPath);
+        }
+        BulkDeleteReport report = new BulkDeleteReport(jobName);
+        long start = System.currentTimeMillis();
+
+        ModifiableValueMap checkpoint = openCheckpoint(resolver, jobName, rootPath, cutoff, report);
+        long[] previous = {
+                checkpoint.get(PN_PAGES_SCANNED, 0L), checkpoint.get(PN_PAGES_DELETED, 0L), checkpoint.get(PN_BATCHES, 0L)
+        };
+        long scanned = 0;
+        long deleted = 0;
+        long batches = 0;
+        int pending = 0;
+        String lastPath = null;
+
+        try {
+            while (candidates.hasNext()) {
+                String path = candidates.next();
+                scanned++;
+                Resource page = resolver.getResource(path);
+                if (page == null) {
+                    // Already removed together with an expired ancestor
+                    continue;
+                }
+                Set<String> referrers = checkReferences ? pageReferenceIndex.getExternalReferrers(path) : Collections.<String>emptySet();
+                if (!referrers.isEmpty()) {
+                    report.addHeldBack(path);
+                    LOG.debug("Holding back {}, still linked from {}", path, referrers);
+                    if (BulkDeleteConfig.REFERENCES_QUARANTINE.equals(referencePolicy) && quarantine(page, referrers)) {
+                        pending++;
+                    }
+                    continue;
+                }
+                LOG.debug("Deleting node: {}", path);
+                long deleteStart = System.nanoTime();
+                resolver.delete(page);
+                purgeMetrics.recordDelete(System.nanoTime() - deleteStart);
+                deleted++;
+                pending++;
+                lastPath = path;
+
+                if (pending >= effectiveBatchSize) {
+                    batches++;
+                    updateCheckpoint(checkpoint, STATUS_RUNNING, previous, scanned, deleted, batches, lastPath, start);
+                    checkpoint.put(PN_PAGES_HELD_BACK, report.getPagesHeldBack());
+                    commit(resolver);
+                    pending = 0;
+                    LOG.debug("Committed batch {} of job {}, {} pages deleted so far", batches, jobName, deleted);
+                }
+            }
+            if (pending > 0) {
+                batches++;
+            }
+            updateCheckpoint(checkpoint, STATUS_COMPLETED, previous, scanned, deleted, batches, lastPath, start);
+            checkpoint.put(PN_PAGES_HELD_BACK, report.getPagesHeldBack());
+            commit(resolver);
+            report.setCompleted(true);
+        } catch (PersistenceException | RuntimeException e) {
+            resolver.revert();
+            markFailed(resolver, jobName);
+            throw e;
+        } finally {
+            report.setPagesScanned(scanned);
+            report.setPagesDeleted(deleted);
+            report.setBatchesCommitted(batches);
+            report.setDurationMs(System.currentTimeMillis() - start);
+            purgeMetrics.recordPages(scanned, deleted);
+        }
+
+        if (report.getPagesHeldBack() > 0) {
+            LOG.info("Pages of job {} held back because of inbound links: {}", jobName, report.getHeldBackPaths());
+        }
+        LOG.info("Bulk delete finished - {}", report);
+        return report;
+    }
+
+    /**
+     * Marks a referenced page for review instead of deleting it, returning whether it was changed.
+     * Pages marked by an earlier run are left as they are.
+     */
+    private boolean quarantine(Resource page, Set<String> referrers) {
+        Resource content = page.getChild(JcrConstants.JCR_CONTENT);
+        ModifiableValueMap properties = content == null ? null : content.adaptTo(ModifiableValueMap.class);
+        if (properties == null || properties.containsKey(PN_QUARANTINED)) {
+            return false;
+        }
+        properties.put(PN_QUARANTINED, Calendar.getInstance());
+        properties.put(PN_QUARANTINE_REFERRERS, referrers.toArray(new String[0]));
+        return true;
+    }
+
+    private void commit(ResourceResolver resolver) throws PersistenceException {
+        long commitStart = System.nanoTime();
+        resolver.commit();
+        purgeMetrics.recordCommit(System.nanoTime() - commitStart);
+    }
+
+    private ModifiableValueMap openCheckpoint(ResourceResolver resolver, String jobName, String rootPath, Calendar cutoff,
+            BulkDeleteReport report) throws PersistenceException {
+        Map<String, Object> folderProperties = new HashMap<>();
+        folderProperties.put(JcrConstants.JCR_PRIMARYTYPE, JcrResourceConstants.NT_SLING_FOLDER);
+        Resource parent = ResourceUtil.getOrCreateResource(resolver, checkpointPath, folderProperties,
+                JcrResourceConstants.NT_SLING_FOLDER, false);
+
+        Resource checkpoint = parent.getChild(jobName);
+        ValueMap existing = checkpoint == null ? ValueMap.EMPTY : checkpoint.getValueMap();
+        boolean running = STATUS_RUNNING.equals(existing.get(PN_STATUS, String.class));
+        if (running && !isStale(existing)) {
+            // Another run of the job is still committing, leave its checkpoint alone
+            LOG.warn("Job {} is already running, last commit at {}", jobName,
+                    existing.get(PN_LAST_COMMIT, existing.get(PN_STARTED, Calendar.class)));
+            throw new IllegalStateException("Job " + jobName + " is already running");
+        }
+        boolean resume = running || STATUS_FAILED.equals(existing.get(PN_STATUS, String.class));
+        if (checkpoint == null) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+            checkpoint = resolver.create(parent, jobName, properties);
+        }
+
+        ModifiableValueMap properties = checkpoint.adaptTo(ModifiableValueMap.class);
+        if (resume) {
+            report.setResumed(true);
+            LOG.info("Resuming job {} after {} committed batches", jobName, existing.get(PN_BATCHES, 0L));
+        } else {
+            properties.put(PN_STARTED, Calendar.getInstance());
+            properties.put(PN_PAGES_SCANNED, 0L);
+            properties.put(PN_PAGES_DELETED, 0L);
+            properties.put(PN_BATCHES, 0L);
+            properties.remove(PN_LAST_PATH);
+            properties.remove(PN_LAST_COMMIT);
+        }
+        properties.put(PN_STATUS, STATUS_RUNNING);
+        properties.put(PN_ROOT_PATH, rootPath);
+        properties.put(PN_CUTOFF, cutoff);
+        resolver.commit();
+        return properties;
+    }
+
+    /**
+     * Records the totals of all runs of the job, i.e. the counts of previous runs plus the current one.
+     */
+    private void updateCheckpoint(ModifiableValueMap checkpoint, String status, long[] previous, long scanned, long deleted,
+            long batches, String lastPath, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        checkpoint.put(PN_STATUS, status);
+        checkpoint.put(PN_PAGES_SCANNED, previous[0] + scanned);
+        checkpoint.put(PN_PAGES_DELETED, previous[1] + deleted);
+        checkpoint.put(PN_BATCHES, previous[2] + batches);
+        checkpoint.put(PN_LAST_COMMIT, Calendar.getInstance());
+        checkpoint.put(PN_PAGES_PER_SECOND, deleted * 1000d / elapsed);
+        if (lastPath != null) {
+            checkpoint.put(PN_LAST_PATH, lastPath);
+        }
+    }
+
+    private void markFailed(ResourceResolver resolver, String jobName) {
+        try {
+            resolver.refresh();
+            Resource checkpoint = resolver.getResource(checkpointPath + "/" + jobName);
+            ModifiableValueMap properties = checkpoint == null ? null : checkpoint.adaptTo(ModifiableValueMap.class);
+            if (properties != null) {
+                properties.put(PN_STATUS, STATUS_FAILED);
+                resolver.commit();
+            }
+        } catch (PersistenceException e) {
+            LOG.error("Unable to mark job {} as failed: ", jobName, e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.adobe.practise.website.core.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk page deletion run.
+ */
+public class BulkDeleteReport {
+
+    /** Number of held back paths listed in a report, further ones are only counted. */
+    public static final int MAX_HELD_BACK_PATHS = 1000;
+
+    private final String jobName;
+    private long pagesScanned;
+    private long pagesDeleted;
+    private long batchesCommitted;
+    private long pagesHeldBack;
+    private final List<String> heldBackPaths = new ArrayList<>();
+    private long pagesUnpublished;
+    private long pagesArchived;
+    private long durationMs;
+    private boolean resumed;
+    private boolean completed;
+
+    public BulkDeleteReport(String jobName) {
+        this.jobName = jobName;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public long getPagesScanned() {
+        return pagesScanned;
+    }
+
+    public void setPagesScanned(long pagesScanned) {
+        this.pagesScanned = pagesScanned;
+    }
+
+    public long getPagesDeleted() {
+        return pagesDeleted;
+    }
+
+    public void setPagesDeleted(long pagesDeleted) {
+        this.pagesDeleted = pagesDeleted;
+    }
+
+    public long getBatchesCommitted() {
+        return batchesCommitted;
+    }
+
+    public void setBatchesCommitted(long batchesCommitted) {
+        this.batchesCommitted = batchesCommitted;
+    }
+
+    /**
+     * Returns the number of candidates kept because other pages still link to them.
+     */
+    public long getPagesHeldBack() {
+        return pagesHeldBack;
+    }
+
+    /**
+     * Returns the paths of the held back pages, at most {@link #MAX_HELD_BACK_PATHS} of them.
+     */
+    public List<String> getHeldBackPaths() {
+        return Collections.unmodifiableList(heldBackPaths);
+    }
+
+    public void addHeldBack(String path) {
+        pagesHeldBack++;
+        if (heldBackPaths.size() < MAX_HELD_BACK_PATHS) {
+            heldBackPaths.add(path);
+        }
+    }
+
+    /**
+     * Returns the number of pages deactivated by a retention policy.
+     */
+    public long getPagesUnpublished() {
+        return pagesUnpublished;
+    }
+
+    public void setPagesUnpublished(long pagesUnpublished) {
+        this.pagesUnpublished = pagesUnpublished;
+    }
+
+    /**
+     * Returns the number of pages moved to an archive by a retention policy.
+     */
+    public long getPagesArchived() {
+        return pagesArchived;
+    }
+
+    public void setPagesArchived(long pagesArchived) {
+        this.pagesArchived = pagesArchived;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public void setDurationMs(long durationMs) {
+        this.durationMs = durationMs;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    /**
+     * Returns the deletion throughput of the run in pages per second.
+     */
+    public double getPagesPerSecond() {
+        return durationMs == 0 ? 0 : pagesDeleted * 1000d / durationMs;
+    }
+
+    /**
+     * Adds the counts of another run, e.g. of one subtree of a parallel purge, to this report.
+     * The combined report is only completed if every run completed.
+     */
+    public void merge(BulkDeleteReport other) {
+        pagesScanned += other.pagesScanned;
+        pagesDeleted += other.pagesDeleted;
+        batchesCommitted += other.batchesCommitted;
+        pagesHeldBack += other.pagesHeldBack;
+        pagesUnpublished += other.pagesUnpublished;
+        pagesArchived += other.pagesArchived;
+        for (String path : other.heldBackPaths) {
+            if (heldBackPaths.size() < MAX_HELD_BACK_PATHS) {
+                heldBackPaths.add(path);
+            }
+        }
+        resumed |= other.resumed;
+        completed &= other.completed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: scanned=%d, deleted=%d, heldBack=%d, unpublished=%d, archived=%d, batches=%d, duration=%dms, "
+                + "pages/s=%.1f, resumed=%s, completed=%s", jobName, pagesScanned, pagesDeleted, pagesHeldBack, pagesUnpublished,
+                pagesArchived, batchesCommitted, durationMs, getPagesPerSecond(), resumed, completed);
+    }
+}
@@ -1,156 +1,235 @@
-package com.adobe.practise.website.core.service.impl;
-
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-
-import javax.jcr.Node;
-import javax.jcr.Session;
-
-import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.Reference;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.adobe.practise.website.core.service.DeleteOldPagesService;
-import com.day.cq.search.PredicateGroup;
-import com.day.cq.search.Query;
-import com.day.cq.search.QueryBuilder;
-import com.day.cq.search.result.SearchResult;
-
-@Component(service = DeleteOldPagesServiceImpl.class)
-public class DeleteOldPagesServiceImpl implements DeleteOldPagesService {
-
-    @Reference
-    private ResourceResolverFactory resolverFactory;
-//    @Reference
-//    private WorkItem workItem;
-    @Reference
-    private QueryBuilder queryBuilder;
-//    private String payloadPath = workItem.getWorkflowData().getPayload().toString();
-    private static final Logger LOG = LoggerFactory.getLogger(DeleteOldPagesServiceImpl.class);
-
-    @Override
-    public void deleteOldPagesOneMinuteAgo(String path) {
-        ResourceResolver resolver = null;
-        Session session = null;
-
-        try {
-          
-            Map<String, Object> authInfo = new HashMap<>();
-            authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
-            resolver = resolverFactory.getServiceResourceResolver(authInfo);
-            session = resolver.adaptTo(Session.class);
-
-          
-            SearchResult result = getSearchResult(session, path);
-
-            if (result != null) {
-                LOG.info("Found {} pages older than one minute.", result.getHits().size());
-
-             
-                Iterator<Node> nodes = result.getNodes();
-                while (nodes.hasNext()) {
-                    Node node = nodes.next();
-                    LOG.info("Deleting node: {}", node.getPath());
-//                    node.remove();
-                }
-
-            
-                resolver.commit();
-                LOG.info("Successfully deleted pages older than one minute.");
-            }
-        } catch (Exception e) {
-            LOG.error("Error while deleting old pages: ", e);
-        } finally {
-            if (resolver != null) {
-                resolver.close();
-                LOG.info("ResourceResolver closed.");
-            }
-        }
-    }
-    
-    @Override
-    public void deleteOldPagesOneMonthAgo(String path) {
-    	   ResourceResolver resolver = null;
-           Session session = null;
-
-        try {
-        	 Map<String, Object> authInfo = new HashMap<>();
-             authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
-             resolver = resolverFactory.getServiceResourceResolver(authInfo);
-             session = resolver.adaptTo(Session.class);
-
-            Calendar now = Calendar.getInstance();
-            Calendar oneMonthAgo = (Calendar) now.clone();
-            oneMonthAgo.add(Calendar.MONTH, -1);
-
-          
-            String oneMonthAgoDate = String.format("%04d-%02d-%02dT00:00:00.000Z", 
-                    oneMonthAgo.get(Calendar.YEAR), 
-                    oneMonthAgo.get(Calendar.MONTH) + 1,  
-                    oneMonthAgo.get(Calendar.DAY_OF_MONTH));
-
-            Map<String, String> queryMap = new HashMap<>();
-            queryMap.put("path", path);
-            queryMap.put("type", "cq:Page");
-            queryMap.put("1_daterange.property", "jcr:created");
-            queryMap.put("1_daterange.upperBound", oneMonthAgoDate);
-            queryMap.put("1_daterange.upperOperation=","<=");
-            
-//            queryMap.put("1_daterange.upperBound", now.getTimeInMillis() + "");
-            
-            LOG.info(oneMonthAgoDate);
-            Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
-            SearchResult result = query.getResult();
-
-           
-            Iterator<Node> nodes = result.getNodes();
-            while (nodes.hasNext()) {
-                Node node = nodes.next();
-                LOG.info("Deleting node: {}", node.getPath());
-//                node.remove();
-            }
-            session.save();
-            LOG.info("Successfully deleted nodes created one month ago.");
-
-        } catch (Exception e) {
-            LOG.error("Error deleting pages: ", e);
-        }
-    }
-    
-    
-    
-    private SearchResult getSearchResult(Session session, String path) {
-        try {
-            Calendar now = Calendar.getInstance();
-            Calendar oneMinuteAgo = (Calendar) now.clone();
-            oneMinuteAgo.add(Calendar.MINUTE, -1);
-
-            String oneMinuteAgoTimestamp = Long.toString(oneMinuteAgo.getTimeInMillis());
-            String nowTimestamp = Long.toString(now.getTimeInMillis());
-
-            Map<String, String> queryMap = new HashMap<>();
-            queryMap.put("path", path);
-            queryMap.put("type", "cq:Page");
-            queryMap.put("1_daterange.property", "jcr:created");
-            queryMap.put("1_daterange.lowerBound", oneMinuteAgoTimestamp);
-            queryMap.put("1_daterange.upperBound", nowTimestamp);
-
-            Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
-            return query.getResult();
-        } catch (Exception e) {
-            LOG.error("Error building query: ", e);
-            return null;
-        }
-    }
-
-	public void startFlow() {
-		LOG.info("WorkFlow Called From Scheduler,Deleting Pages");
-//		deleteOldPagesOneMonthAgo(payloadPath);
-		
-	}
-}
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.service.BulkDeleteReport;
+import com.adobe.practise.website.core.service.DeleteOldPagesService;
+import com.day.cq.search.QueryBuilder;
+
+@Component(service = DeleteOldPagesServiceImpl.class)
+public class DeleteOldPagesServiceImpl implements DeleteOldPagesService {
+
+    @Reference
+    private ServiceResolverPool resolverPool;
+//    @Reference
+//    private WorkItem workItem;
+    @Reference
+    private QueryBuilder queryBuilder;
+    @Reference
+    private BulkDeleteEngine bulkDeleteEngine;
+    @Reference
+    private Scheduler scheduler;
+    @Reference
+    private PurgeMetrics purgeMetrics;
+    @Reference
+    private PageExpiryQueue pageExpiryQueue;
+    @Reference
+    private RetentionPolicyEngine retentionPolicyEngine;
+//    private String payloadPath = workItem.getWorkflowData().getPayload().toString();
+    private static final Logger LOG = LoggerFactory.getLogger(DeleteOldPagesServiceImpl.class);
+
+    static final String ONE_MONTH_JOB_PREFIX = "onemonth";
+
+    /** Job prefix of the per-subtree purges run by the parallel purge service. */
+    public static final String SUBTREE_JOB_PREFIX = "subtree";
+
+    @Activate
+    protected void activate() {
+        // Checkpoints are shared by the cluster, only the leader resumes them
+        scheduler.schedule((Runnable) this::resumeInterruptedPurges,
+                scheduler.NOW().name("ResumeInterruptedPurges").canRunConcurrently(false).onLeaderOnly(true));
+    }
+
+    @Override
+    public void deleteOldPagesOneMinuteAgo(String path) {
+        try (ServiceResolverPool.Lease lease = resolverPool.lease()) {
+            ResourceResolver resolver = lease.getResolver();
+            Calendar now = Calendar.getInstance();
+            Calendar oneMinuteAgo = (Calendar) now.clone();
+            oneMinuteAgo.add(Calendar.MINUTE, -1);
+
+            ExpiredPageSource candidates = new ExpiredPageSource(queryBuilder, resolver.adaptTo(Session.class), path, false,
+                    oneMinuteAgo, now, bulkDeleteEngine.getWindowSize(), purgeMetrics);
+            while (candidates.hasNext()) {
+                LOG.info("Deleting node: {}", candidates.next());
+//                    node.remove();
+            }
+            LOG.info("Found {} pages older than one minute.", candidates.getCount());
+
+            resolver.commit();
+            LOG.info("Successfully deleted pages older than one minute.");
+        } catch (Exception e) {
+            LOG.error("Error while deleting old pages: ", e);
+        }
+    }
+    
+    @Override
+    public void deleteOldPagesOneMonthAgo(String path) {
+        deleteOldPagesOneMonthAgo(path, 0);
+    }
+
+    /**
+     * Deletes the pages below the path that are older than one month, committing every
+     * {@code batchSize} deletions. A batch size of 0 or less uses the engine default.
+     */
+    public void deleteOldPagesOneMonthAgo(String path, int batchSize) {
+        try {
+            BulkDeleteReport report = purgeOneMonthAgo(path, batchSize);
+            LOG.info("Successfully deleted nodes created one month ago - {}", report);
+        } catch (Exception e) {
+            LOG.error("Error deleting pages: ", e);
+        }
+    }
+
+    /**
+     * Deletes the pages below the path that are older than one month and records the run, leaving
+     * failures to the caller, e.g. a job that should be retried.
+     */
+    public BulkDeleteReport purgeOneMonthAgo(String path, int batchSize)
+            throws LoginException, RepositoryException, PersistenceException {
+        long start = System.currentTimeMillis();
+        try {
+            BulkDeleteReport report = purgeSubtree(BulkDeleteEngine.jobName(ONE_MONTH_JOB_PREFIX, path), path, false, oneMonthAgo(), batchSize);
+            purgeMetrics.recordRun(report, System.currentTimeMillis() - start);
+            return report;
+        } catch (LoginException | RepositoryException | PersistenceException | RuntimeException e) {
+            purgeMetrics.recordFailure("service", e.toString());
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the cutoff of the one-month expiry rule.
+     */
+    public static Calendar oneMonthAgo() {
+        Calendar oneMonthAgo = Calendar.getInstance();
+        oneMonthAgo.add(Calendar.MONTH, -1);
+        return oneMonthAgo;
+    }
+
+    /**
+     * Purges a subtree with its own service resolver. An interrupted run of the same job continues
+     * with its original cutoff so that it deletes the same pages.
+     *
+     * @param includeSelf whether the page at the path is a candidate itself or only its descendants
+     * @param batchSize deletions per commit, 0 or less uses the engine default
+     */
+    public BulkDeleteReport purgeSubtree(String jobName, String path, boolean includeSelf, Calendar cutoff, int batchSize)
+            throws LoginException, RepositoryException, PersistenceException {
+        try (ServiceResolverPool.Lease lease = resolverPool.lease()) {
+            ResourceResolver resolver = lease.getResolver();
+            Calendar resumeCutoff = bulkDeleteEngine.getResumeCutoff(resolver, jobName);
+            return purgeExpired(resolver, jobName, path, includeSelf, resumeCutoff != null ? resumeCutoff : cutoff, batchSize);
+        }
+    }
+
+    /**
+     * Deletes the pages below the path created before the cutoff in batches through the bulk delete engine.
+     * If retention policies are configured they decide instead with their own cutoffs, among the pages
+     * created before the given cutoff.
+     */
+    public BulkDeleteReport purgeExpired(ResourceResolver resolver, String jobName, String path, boolean includeSelf,
+            Calendar cutoff, int batchSize) throws RepositoryException, PersistenceException {
+        if (retentionPolicyEngine.hasPolicies()) {
+            return applyRetentionPolicies(resolver, jobName, path, includeSelf, cutoff, batchSize);
+        }
+        PageExpiryQueue.DueScan dueScan = pageExpiryQueue.covers(path) ? pageExpiryQueue.getDue(path, includeSelf, cutoff) : null;
+        Iterator<String> candidates = dueScan != null ? dueScan.iterator() : findExpiredPages(resolver, path, includeSelf, cutoff);
+        BulkDeleteReport report = bulkDeleteEngine.execute(resolver, jobName, path, cutoff, candidates, batchSize);
+        if (dueScan != null && report.isCompleted()) {
+            dueScan.complete(resolver);
+        }
+        return report;
+    }
+
+    /**
+     * Evaluates all retention policies in one pass over the pages created before the latest policy
+     * cutoff, or before the caller's cutoff if that is earlier, so that a resumed run or a shard keeps
+     * the cutoff it was started with. Deletions go through the bulk delete engine, archive moves are
+     * committed afterwards in batches of the same size.
+     */
+    private BulkDeleteReport applyRetentionPolicies(ResourceResolver resolver, String jobName, String path, boolean includeSelf,
+            Calendar cutoff, int batchSize) throws RepositoryException, PersistenceException {
+        RetentionPolicyEngine.Pass pass = retentionPolicyEngine.start(resolver, path);
+        if (!pass.hasPolicies()) {
+            LOG.info("No retention policy applies below {}", path);
+            BulkDeleteReport report = new BulkDeleteReport(jobName);
+            report.setCompleted(true);
+            return report;
+        }
+        Calendar candidateCutoff = pass.getCandidateCutoff();
+        if (cutoff != null && cutoff.before(candidateCutoff)) {
+            candidateCutoff = cutoff;
+        }
+        PageExpiryQueue.DueScan dueScan = pageExpiryQueue.covers(path) ? pageExpiryQueue.getDue(path, includeSelf, candidateCutoff) : null;
+        Iterator<String> candidates = dueScan != null ? dueScan.iterator() : findExpiredPages(resolver, path, includeSelf, candidateCutoff);
+        BulkDeleteReport report = bulkDeleteEngine.execute(resolver, jobName, path, candidateCutoff, pass.filter(candidates), batchSize);
+        pass.archive(batchSize > 0 ? batchSize : bulkDeleteEngine.getBatchSize());
+        // Pages no policy matched yet stay held back, a policy with a longer maximum age may match them later
+        if (dueScan != null && report.isCompleted()) {
+            dueScan.complete(resolver);
+        }
+        report.setPagesUnpublished(pass.getUnpublished());
+        report.setPagesArchived(pass.getArchived());
+        LOG.info("Retention policies applied below {}, matches per policy: {}, failures: {}", path, pass.getMatches(),
+                pass.getFailures());
+        return report;
+    }
+
+    /**
+     * Lazily iterates the paths of the pages below the path created before the cutoff with the expiry query,
+     * the candidates of a purge of a path the expiry queue does not cover.
+     */
+    public Iterator<String> findExpiredPages(ResourceResolver resolver, String path, boolean includeSelf, Calendar cutoff) {
+        return new ExpiredPageSource(queryBuilder, resolver.adaptTo(Session.class), path, includeSelf, null, cutoff,
+                bulkDeleteEngine.getWindowSize(), purgeMetrics);
+    }
+
+    /**
+     * Resumes one-month and subtree purges that were interrupted by a restart or failover.
+     */
+    private void resumeInterruptedPurges() {
+        List<String> roots;
+        List<String> subtrees;
+        try (ServiceResolverPool.Lease lease = resolverPool.lease()) {
+            roots = bulkDeleteEngine.getInterruptedRoots(lease.getResolver(), ONE_MONTH_JOB_PREFIX);
+            subtrees = bulkDeleteEngine.getInterruptedRoots(lease.getResolver(), SUBTREE_JOB_PREFIX);
+        } catch (LoginException e) {
+            LOG.error("Error obtaining service ResourceResolver: ", e);
+            return;
+        }
+        for (String root : roots) {
+            LOG.info("Resuming interrupted purge of {}", root);
+            deleteOldPagesOneMonthAgo(root);
+        }
+        for (String subtree : subtrees) {
+            LOG.info("Resuming interrupted subtree purge of {}", subtree);
+            try {
+                purgeSubtree(BulkDeleteEngine.jobName(SUBTREE_JOB_PREFIX, subtree), subtree, true, oneMonthAgo(), 0);
+            } catch (Exception e) {
+                LOG.error("Error resuming subtree purge of {}: ", subtree, e);
+            }
+        }
+    }
+
+	public void startFlow() {
+		LOG.info("WorkFlow Called From Scheduler,Deleting Pages");
+//		deleteOldPagesOneMonthAgo(payloadPath);
+		
+	}
+}
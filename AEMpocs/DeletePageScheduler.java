@@ -1,114 +1,376 @@
-package com.adobe.practise.website.core.schedulers;
-
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.commons.lang3.StringUtils;
-import org.apache.sling.api.resource.LoginException;
-import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
-import org.apache.sling.commons.scheduler.ScheduleOptions;
-import org.apache.sling.commons.scheduler.Scheduler;
-import org.osgi.framework.Constants;
-import org.osgi.service.component.annotations.Activate;
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.Modified;
-import org.osgi.service.component.annotations.Reference;
-import org.osgi.service.metatype.annotations.Designate;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.adobe.granite.workflow.WorkflowException;
-import com.adobe.granite.workflow.WorkflowSession;
-import com.adobe.granite.workflow.exec.WorkflowData;
-import com.adobe.granite.workflow.model.WorkflowModel;
-import com.adobe.practise.website.core.schedulers.config.DeleteSchedulerConfig;
-import com.day.cq.workflow.WorkflowService;
-
-@Component(service = Runnable.class,
-        immediate = true,
-        property = {
-                Constants.SERVICE_DESCRIPTION + "=Scheduler to launch Delete Expired Pages workflow"
-        }
-)
-@Designate(ocd = DeleteSchedulerConfig.class)
-public class DeletePageScheduler implements Runnable {
-
-    private static final Logger LOG = LoggerFactory.getLogger(DeletePageScheduler.class);
-
-    @Reference
-    private Scheduler scheduler;
-
-    @Reference
-    private ResourceResolverFactory resolverFactory;
-
-    @Reference
-    private WorkflowService workflowService;
-
-    private String cronExpression;
-    private boolean isEnabled;
-    private String workflowModelPath;
-    private String pagePath;
-
-    @Activate
-    @Modified
-    protected void activate(DeleteSchedulerConfig config) {
-        this.cronExpression = config.updateExpression();
-        this.isEnabled = config.enable();
-        this.workflowModelPath = config.workflowModelPath();
-        this.pagePath = config.pagePath();
-        LOG.info("Scheduler activated with cron expression: {}, workflow model: {}, and page path: {}",
-                cronExpression, workflowModelPath, pagePath);
-        if (isEnabled && StringUtils.isNotBlank(cronExpression)) {
-            ScheduleOptions options = scheduler.EXPR(cronExpression).name("DeleteExpiredPagesScheduler").canRunConcurrently(false);
-            scheduler.schedule(this, options);
-            LOG.info("Scheduler configured and scheduled with cron expression: {}", cronExpression);
-        } else {
-            LOG.warn("Scheduler is disabled or cron expression is blank.");
-        }
-    }
-
-    @Override
-    public void run() {
-        if (!isEnabled) {
-            LOG.warn("Scheduler is disabled.");
-            return;
-        }
-
-        try (ResourceResolver resolver = getServiceResourceResolver()) {
-            if (resolver == null) {
-                LOG.error("Could not obtain Service ResourceResolver.");
-                return;
-            }
-
-            WorkflowSession workflowSession = resolver.adaptTo(WorkflowSession.class);
-            if (workflowSession == null) {
-                LOG.error("Unable to adapt ResourceResolver to WorkflowSession.");
-                return;
-            }
-
-            WorkflowModel workflowModel = workflowSession.getModel(workflowModelPath);
-            if (workflowModel == null) {
-                LOG.error("Workflow model not found at path: {}", workflowModelPath);
-                return;
-            }
-
-            WorkflowData workflowData = workflowSession.newWorkflowData("JCR_PATH", pagePath);
-            workflowSession.startWorkflow(workflowModel, workflowData);
-            LOG.info("Workflow to delete old pages launched for page path: {}", pagePath);
-
-        } catch (LoginException e) {
-            LOG.error("Error obtaining service ResourceResolver: ", e);
-        } catch (WorkflowException e) {
-            LOG.error("Error launching workflow: ", e);
-        } catch (Exception e) {
-            LOG.error("Unexpected error: ", e);
-        }
-    }
-
-    private ResourceResolver getServiceResourceResolver() throws LoginException {
-        Map<String, Object> authInfo = new HashMap<>();
-        authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
-        return resolverFactory.getServiceResourceResolver(authInfo);
-    }
-}
+package com.adobe.practise.website.core.schedulers;
+
+import java.lang.management.ManagementFactory;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.scheduler.ScheduleOptions;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.granite.workflow.WorkflowException;
+import com.adobe.granite.workflow.WorkflowSession;
+import com.adobe.granite.workflow.exec.WorkflowData;
+import com.adobe.granite.workflow.model.WorkflowModel;
+import com.adobe.practise.website.core.schedulers.config.DeleteSchedulerConfig;
+import com.adobe.practise.website.core.service.impl.DeleteOldPagesServiceImpl;
+import com.adobe.practise.website.core.service.impl.ExpiryQuery;
+import com.adobe.practise.website.core.service.impl.PageExpiryQueue;
+import com.adobe.practise.website.core.service.impl.ParallelPurgeService;
+import com.adobe.practise.website.core.service.impl.PurgeMetrics;
+import com.adobe.practise.website.core.service.impl.PurgePageJobConsumer;
+import com.adobe.practise.website.core.service.impl.RetentionPolicyEngine;
+import com.adobe.practise.website.core.service.impl.ServiceResolverPool;
+import com.adobe.practise.website.core.workflow.DeletePageWorkflow;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.workflow.WorkflowService;
+
+@Component(service = Runnable.class,
+        immediate = true,
+        property = {
+                Constants.SERVICE_DESCRIPTION + "=Scheduler to launch Delete Expired Pages workflow"
+        }
+)
+@Designate(ocd = DeleteSchedulerConfig.class)
+public class DeletePageScheduler implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeletePageScheduler.class);
+
+    @Reference
+    private Scheduler scheduler;
+
+    @Reference
+    private ServiceResolverPool resolverPool;
+
+    @Reference
+    private WorkflowService workflowService;
+
+    @Reference
+    private PurgeMetrics purgeMetrics;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private JobManager jobManager;
+
+    @Reference
+    private ParallelPurgeService parallelPurgeService;
+
+    @Reference
+    private PageExpiryQueue pageExpiryQueue;
+
+    @Reference
+    private RetentionPolicyEngine retentionPolicyEngine;
+
+    private static final String CATCH_UP_JOB_NAME = "DeleteExpiredPagesCatchUp";
+
+    /** Returned by the adaptive batch size when the run should back off. */
+    private static final int SKIP_RUN = -1;
+
+    private String cronExpression;
+    private boolean isEnabled;
+    private String workflowModelPath;
+    private String pagePath;
+    private DeleteSchedulerConfig config;
+    private int skippedRuns;
+    private long runs;
+
+    /** The cron and catch-up jobs share this runnable, only one of them may run at a time. */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @Activate
+    @Modified
+    protected void activate(DeleteSchedulerConfig config) {
+        this.cronExpression = config.updateExpression();
+        this.isEnabled = config.enable();
+        this.workflowModelPath = config.workflowModelPath();
+        this.pagePath = config.pagePath();
+        this.config = config;
+        this.skippedRuns = 0;
+        this.runs = 0;
+        LOG.info("Scheduler activated with cron expression: {}, workflow model: {}, and page path: {}",
+                cronExpression, workflowModelPath, pagePath);
+        if (isEnabled && StringUtils.isNotBlank(cronExpression)) {
+            ScheduleOptions options = scheduler.EXPR(cronExpression).name("DeleteExpiredPagesScheduler").canRunConcurrently(false)
+                    .onLeaderOnly(isLeaderOnly());
+            scheduler.schedule(this, options);
+            LOG.info("Scheduler configured and scheduled with cron expression: {}", cronExpression);
+            scheduler.schedule((Runnable) this::checkExpiryQueryPlan, scheduler.NOW().name("DeleteExpiredPagesPlanCheck"));
+            scheduleCatchUp(config);
+        } else {
+            LOG.warn("Scheduler is disabled or cron expression is blank.");
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!isEnabled) {
+            LOG.warn("Scheduler is disabled.");
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            LOG.info("Previous run is still in progress, skipping run.");
+            return;
+        }
+
+        try (ServiceResolverPool.Lease lease = resolverPool.lease()) {
+            ResourceResolver resolver = lease.getResolver();
+
+            int batchSize = 0;
+            if (config.adaptive()) {
+                if (!hasExpiredPages(resolver)) {
+                    LOG.info("No expired pages below {}, skipping run.", pagePath);
+                    return;
+                }
+                batchSize = getAdaptiveBatchSize();
+                if (batchSize == SKIP_RUN) {
+                    return;
+                }
+            }
+
+            runs++;
+            if (DeleteSchedulerConfig.MODE_DIRECT.equals(config.executionMode())
+                    && (config.auditInterval() <= 0 || runs % config.auditInterval() != 0)) {
+                if (DeleteSchedulerConfig.CLUSTER_SHARDED.equals(config.clusterMode())) {
+                    addShardJobs(resolver, batchSize);
+                } else {
+                    addPurgeJob(batchSize);
+                }
+                return;
+            }
+
+            WorkflowSession workflowSession = resolver.adaptTo(WorkflowSession.class);
+            if (workflowSession == null) {
+                LOG.error("Unable to adapt ResourceResolver to WorkflowSession.");
+                return;
+            }
+
+            WorkflowModel workflowModel = workflowSession.getModel(workflowModelPath);
+            if (workflowModel == null) {
+                LOG.error("Workflow model not found at path: {}", workflowModelPath);
+                return;
+            }
+
+            WorkflowData workflowData = workflowSession.newWorkflowData("JCR_PATH", pagePath);
+            if (batchSize > 0) {
+                workflowData.getMetaDataMap().put(DeletePageWorkflow.BATCH_SIZE, batchSize);
+            }
+            workflowSession.startWorkflow(workflowModel, workflowData);
+            purgeMetrics.recordLaunch();
+            LOG.info("Workflow to delete old pages launched for page path: {}", pagePath);
+
+        } catch (LoginException e) {
+            purgeMetrics.recordFailure("scheduler", e.toString());
+            LOG.error("Error obtaining service ResourceResolver: ", e);
+        } catch (WorkflowException e) {
+            purgeMetrics.recordFailure("scheduler", e.toString());
+            LOG.error("Error launching workflow: ", e);
+        } catch (Exception e) {
+            purgeMetrics.recordFailure("scheduler", e.toString());
+            LOG.error("Unexpected error: ", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Queues the purge as a Sling job, which runs it in-process without a workflow instance and
+     * retries it if it fails. No job is added while a purge of the page path is still queued or running,
+     * so slow runs or retries do not pile up jobs that purge the same pages.
+     */
+    private void addPurgeJob(int batchSize) {
+        if (hasPendingJob(PurgePageJobConsumer.TOPIC, pagePath)) {
+            LOG.info("Purge job for page path {} is still queued or running, not adding another one", pagePath);
+            return;
+        }
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(PurgePageJobConsumer.PROPERTY_PATH, pagePath);
+        properties.put(PurgePageJobConsumer.PROPERTY_BATCH_SIZE, batchSize);
+        properties.put(PurgePageJobConsumer.PROPERTY_PARALLEL, config.parallel());
+        Job job = jobManager.addJob(PurgePageJobConsumer.TOPIC, properties);
+        if (job == null) {
+            purgeMetrics.recordFailure("scheduler", "unable to add purge job for " + pagePath);
+            LOG.error("Unable to add purge job for page path: {}", pagePath);
+            return;
+        }
+        purgeMetrics.recordLaunch();
+        LOG.info("Purge job {} added for page path: {}", job.getId(), pagePath);
+    }
+
+    /**
+     * Queues one job per child subtree of the page path. Sling distributes the jobs over the cluster
+     * members that run the purge job consumer, so each node deletes a distinct slice of the root.
+     * All shards share one cutoff, the one the expired page check used, so that the slices add up to
+     * a purge of the whole root. Subtrees
+     * whose previous job is still queued or running are skipped, since two jobs purging the same
+     * subtree would share its checkpoint; the next run picks them up again.
+     */
+    private void addShardJobs(ResourceResolver resolver, int batchSize) {
+        Calendar shardCutoff = getCutoff();
+        if (shardCutoff == null) {
+            LOG.info("No retention policy applies below {}, not adding subtree purge jobs", pagePath);
+            return;
+        }
+        long cutoff = shardCutoff.getTimeInMillis();
+        List<String> subtrees = parallelPurgeService.getChildPages(resolver, pagePath);
+        int added = 0;
+        int pending = 0;
+        for (String subtree : subtrees) {
+            if (hasPendingJob(PurgePageJobConsumer.TOPIC_SUBTREE, subtree)) {
+                pending++;
+                continue;
+            }
+            Map<String, Object> properties = new HashMap<>();
+            properties.put(PurgePageJobConsumer.PROPERTY_PATH, subtree);
+            properties.put(PurgePageJobConsumer.PROPERTY_BATCH_SIZE, batchSize);
+            properties.put(PurgePageJobConsumer.PROPERTY_CUTOFF, cutoff);
+            if (jobManager.addJob(PurgePageJobConsumer.TOPIC_SUBTREE, properties) != null) {
+                added++;
+            } else {
+                purgeMetrics.recordFailure("scheduler", "unable to add purge job for " + subtree);
+                LOG.error("Unable to add purge job for subtree: {}", subtree);
+            }
+        }
+        purgeMetrics.recordLaunch();
+        LOG.info("{} of {} subtree purge jobs added for page path: {}, {} still pending", added, subtrees.size(), pagePath, pending);
+    }
+
+    /**
+     * Returns true if a job of the topic for the path is queued, waiting for a retry or running.
+     */
+    private boolean hasPendingJob(String topic, String path) {
+        Map<String, Object> template = Collections.<String, Object>singletonMap(PurgePageJobConsumer.PROPERTY_PATH, path);
+        return !jobManager.findJobs(JobManager.QueryType.ACTIVE, topic, 1, template).isEmpty()
+                || !jobManager.findJobs(JobManager.QueryType.QUEUED, topic, 1, template).isEmpty();
+    }
+
+    private boolean isLeaderOnly() {
+        return !DeleteSchedulerConfig.CLUSTER_ALL_NODES.equals(config.clusterMode());
+    }
+
+    /**
+     * Schedules the additional catch-up runs of the adaptive mode, or removes them if not configured.
+     */
+    private void scheduleCatchUp(DeleteSchedulerConfig config) {
+        if (config.adaptive() && StringUtils.isNotBlank(config.catchUpExpression())) {
+            scheduler.schedule(this, scheduler.EXPR(config.catchUpExpression()).name(CATCH_UP_JOB_NAME).canRunConcurrently(false)
+                    .onLeaderOnly(isLeaderOnly()));
+            LOG.info("Catch-up runs scheduled with cron expression: {}", config.catchUpExpression());
+        } else {
+            scheduler.unschedule(CATCH_UP_JOB_NAME);
+        }
+    }
+
+    /**
+     * Checks the expiry queue for a page the next purge would read, or runs a count-only probe of the
+     * expiry query fetching at most one hit if the queue does not cover the page path. Sharded purges
+     * keep their progress per subtree, so each subtree is checked. With retention policies the latest
+     * policy cutoff is used instead of one month.
+     */
+    private boolean hasExpiredPages(ResourceResolver resolver) {
+        Calendar cutoff = getCutoff();
+        if (cutoff == null) {
+            return false;
+        }
+        if (pageExpiryQueue.covers(pagePath)) {
+            if (!DeleteSchedulerConfig.CLUSTER_SHARDED.equals(config.clusterMode())) {
+                return pageExpiryQueue.hasDue(pagePath, false, cutoff);
+            }
+            for (String subtree : parallelPurgeService.getChildPages(resolver, pagePath)) {
+                if (pageExpiryQueue.hasDue(subtree, true, cutoff)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Map<String, String> queryMap = ExpiryQuery.createPredicates(pagePath, false, null, cutoff);
+        queryMap.put("p.limit", "1");
+        queryMap.put("p.guessTotal", "true");
+        return !queryBuilder.createQuery(PredicateGroup.create(queryMap), resolver.adaptTo(Session.class))
+                .getResult().getHits().isEmpty();
+    }
+
+    /**
+     * Returns the cutoff of a purge of the page path started now, the latest policy cutoff if retention
+     * policies are configured and one month otherwise, or null if no configured policy applies.
+     */
+    private Calendar getCutoff() {
+        return retentionPolicyEngine.hasPolicies()
+                ? retentionPolicyEngine.getCandidateCutoff(pagePath) : DeleteOldPagesServiceImpl.oneMonthAgo();
+    }
+
+    /**
+     * Chooses the batch size of the next run from the system load average and the recent commit
+     * latency. Under load, runs back off for up to the configured number of skipped runs and are then
+     * launched with the throttled batch size, so the backlog never stalls. In the off-peak window runs
+     * are not skipped and use the larger off-peak batch size when the system is idle.
+     *
+     * @return the batch size, 0 for the engine default, or {@link #SKIP_RUN}
+     */
+    private int getAdaptiveBatchSize() {
+        boolean offPeak = isOffPeak(Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
+        double loadAverage = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        double commitLatency = purgeMetrics.getRecentCommitLatencyMs();
+        boolean underLoad = (config.maxLoadAverage() > 0 && loadAverage > config.maxLoadAverage())
+                || (config.maxCommitLatencyMs() > 0 && commitLatency > config.maxCommitLatencyMs());
+
+        if (!underLoad) {
+            skippedRuns = 0;
+            return offPeak ? Math.max(0, config.offPeakBatchSize()) : 0;
+        }
+        if (!offPeak && skippedRuns < config.maxSkippedRuns()) {
+            skippedRuns++;
+            LOG.info("Backing off, load average: {}, commit latency: {}ms, skipped runs: {}", loadAverage, commitLatency, skippedRuns);
+            return SKIP_RUN;
+        }
+        skippedRuns = 0;
+        LOG.info("Launching throttled run, load average: {}, commit latency: {}ms", loadAverage, commitLatency);
+        return Math.max(1, config.throttledBatchSize());
+    }
+
+    private boolean isOffPeak(int hour) {
+        int start = config.offPeakStartHour();
+        int end = config.offPeakEndHour();
+        return start <= end ? hour >= start && hour < end : hour >= start || hour < end;
+    }
+
+    /**
+     * Explains the expiry query for the configured page path and warns if Oak would traverse the
+     * repository instead of using the page expiry index.
+     */
+    private void checkExpiryQueryPlan() {
+        if (StringUtils.isBlank(pagePath)) {
+            return;
+        }
+        try (ServiceResolverPool.Lease lease = resolverPool.lease()) {
+            String plan = ExpiryQuery.explain(lease.getResolver().adaptTo(Session.class), pagePath, Calendar.getInstance());
+            if (ExpiryQuery.isTraversal(plan)) {
+                LOG.warn("Expiry query for {} falls back to traversal, check the practisePageExpiry index. Plan: {}", pagePath, plan);
+            } else {
+                LOG.info("Expiry query plan for {}: {}", pagePath, plan);
+            }
+        } catch (Exception e) {
+            LOG.error("Unable to check the expiry query plan: ", e);
+        }
+    }
+}
@@ -1,37 +1,59 @@
-package com.adobe.practise.website.core.workflow;
-
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.Reference;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.adobe.practise.website.core.service.impl.DeleteOldPagesServiceImpl;
-import com.day.cq.workflow.WorkflowSession;
-import com.day.cq.workflow.exec.WorkItem;
-import com.day.cq.workflow.exec.WorkflowProcess;
-import com.day.cq.workflow.metadata.MetaDataMap;
-
-@Component(
-    service = WorkflowProcess.class,
-    immediate = true,
-    property = {"process.label=Delete Expired Pages"}
-)
-public class DeletePageWorkflow implements WorkflowProcess {
-
-    @Reference
-    private DeleteOldPagesServiceImpl deleteOldPagesService;
-
-    private static final Logger LOG = LoggerFactory.getLogger(DeletePageWorkflow.class);
-
-    @Override
-    public void execute(WorkItem workItem, WorkflowSession workflowSession, MetaDataMap metaDataMap) {
-        try {
-        	 String payloadPath = workItem.getWorkflowData().getPayload().toString();
-        	 LOG.info(payloadPath);
-        	 deleteOldPagesService.deleteOldPagesOneMonthAgo(payloadPath);
-        } catch (Exception e) {
-            LOG.error("Failed to delete old pages due to exception: ", e);
-        }
-    }
-    
-}
+package com.adobe.practise.website.core.workflow;
+
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.service.impl.DeleteOldPagesServiceImpl;
+import com.adobe.practise.website.core.service.impl.ParallelPurgeService;
+import com.adobe.practise.website.core.service.impl.PurgeMetrics;
+import com.day.cq.workflow.WorkflowSession;
+import com.day.cq.workflow.exec.WorkItem;
+import com.day.cq.workflow.exec.WorkflowProcess;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+@Component(
+    service = WorkflowProcess.class,
+    immediate = true,
+    property = {"process.label=Delete Expired Pages"}
+)
+public class DeletePageWorkflow implements WorkflowProcess {
+
+    @Reference
+    private DeleteOldPagesServiceImpl deleteOldPagesService;
+
+    @Reference
+    private ParallelPurgeService parallelPurgeService;
+
+    @Reference
+    private PurgeMetrics purgeMetrics;
+
+    /** Process argument selecting the parallel subtree purge, e.g. {@code mode=parallel}. */
+    private static final String PARALLEL_MODE = "mode=parallel";
+
+    /** Workflow metadata key of the batch size chosen by the adaptive scheduler. */
+    public static final String BATCH_SIZE = "batchSize";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeletePageWorkflow.class);
+
+    @Override
+    public void execute(WorkItem workItem, WorkflowSession workflowSession, MetaDataMap metaDataMap) {
+        try {
+        	 String payloadPath = workItem.getWorkflowData().getPayload().toString();
+        	 LOG.info(payloadPath);
+        	 String processArgs = metaDataMap.get("PROCESS_ARGS", String.class);
+        	 int batchSize = workItem.getWorkflowData().getMetaDataMap().get(BATCH_SIZE, 0);
+        	 if (StringUtils.contains(processArgs, PARALLEL_MODE)) {
+        	     parallelPurgeService.purgeOneMonthAgo(payloadPath, batchSize);
+        	 } else {
+        	     deleteOldPagesService.deleteOldPagesOneMonthAgo(payloadPath, batchSize);
+        	 }
+        } catch (Exception e) {
+            purgeMetrics.recordFailure("workflow", e.toString());
+            LOG.error("Failed to delete old pages due to exception: ", e);
+        }
+    }
+    
+}
@@ -1,21 +1,82 @@
-package com.adobe.practise.website.core.schedulers.config;
-
-import org.apache.commons.lang.StringUtils;
-import org.osgi.service.metatype.annotations.AttributeDefinition;
-import org.osgi.service.metatype.annotations.ObjectClassDefinition;
-
-@ObjectClassDefinition(name = "DeleteScheduler Configuration")
-public @interface DeleteSchedulerConfig {
-
-    @AttributeDefinition(name = "Cron Expression", description = "Cron Expression for the scheduler")
-    String updateExpression() default StringUtils.EMPTY;
-
-    @AttributeDefinition(name = "Enable", description = "Enable or disable the delete page scheduler")
-    boolean enable() default false;
-
-    @AttributeDefinition(name = "Workflow Model Path", description = "Path to the workflow model for deleting expired pages")
-    String workflowModelPath() default "/var/workflow/models/deleteexpiredpages";
-
-    @AttributeDefinition(name = "Page Path", description = "Path to the pages to check for expiry")
-    String pagePath() default StringUtils.EMPTY;
-}
+package com.adobe.practise.website.core.schedulers.config;
+
+import org.apache.commons.lang.StringUtils;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
+
+@ObjectClassDefinition(name = "DeleteScheduler Configuration")
+public @interface DeleteSchedulerConfig {
+
+    String MODE_WORKFLOW = "workflow";
+    String MODE_DIRECT = "direct";
+
+    String CLUSTER_ALL_NODES = "all";
+    String CLUSTER_LEADER = "leader";
+    String CLUSTER_SHARDED = "sharded";
+
+    @AttributeDefinition(name = "Cron Expression", description = "Cron Expression for the scheduler")
+    String updateExpression() default StringUtils.EMPTY;
+
+    @AttributeDefinition(name = "Enable", description = "Enable or disable the delete page scheduler")
+    boolean enable() default false;
+
+    @AttributeDefinition(name = "Workflow Model Path", description = "Path to the workflow model for deleting expired pages")
+    String workflowModelPath() default "/var/workflow/models/deleteexpiredpages";
+
+    @AttributeDefinition(name = "Page Path", description = "Path to the pages to check for expiry")
+    String pagePath() default StringUtils.EMPTY;
+
+    @AttributeDefinition(name = "Execution Mode",
+            description = "workflow launches the workflow model on every run, direct runs the purge in-process as a Sling job with retry",
+            options = {
+                    @Option(label = "Workflow", value = DeleteSchedulerConfig.MODE_WORKFLOW),
+                    @Option(label = "Direct", value = DeleteSchedulerConfig.MODE_DIRECT)
+            })
+    String executionMode() default MODE_WORKFLOW;
+
+    @AttributeDefinition(name = "Audit Interval",
+            description = "In direct mode, launch the workflow instead on every n-th run to keep an audit trail, 0 to never launch it")
+    int auditInterval() default 0;
+
+    @AttributeDefinition(name = "Parallel", description = "In direct mode, purge the child subtrees in parallel")
+    boolean parallel() default false;
+
+    @AttributeDefinition(name = "Cluster Mode",
+            description = "leader runs the scheduler on the cluster leader only, sharded additionally splits direct mode purges "
+                    + "into one job per child subtree that any cluster member can process, all runs on every node",
+            options = {
+                    @Option(label = "Leader only", value = DeleteSchedulerConfig.CLUSTER_LEADER),
+                    @Option(label = "Sharded", value = DeleteSchedulerConfig.CLUSTER_SHARDED),
+                    @Option(label = "All nodes", value = DeleteSchedulerConfig.CLUSTER_ALL_NODES)
+            })
+    String clusterMode() default CLUSTER_LEADER;
+
+    @AttributeDefinition(name = "Adaptive", description = "Probe for expired pages before launching the workflow and adapt runs to the system load")
+    boolean adaptive() default false;
+
+    @AttributeDefinition(name = "Max Load Average", description = "System load average above which runs back off, 0 to ignore the load")
+    double maxLoadAverage() default 0;
+
+    @AttributeDefinition(name = "Max Commit Latency (ms)", description = "Average purge commit latency above which runs back off, 0 to ignore the latency")
+    long maxCommitLatencyMs() default 500;
+
+    @AttributeDefinition(name = "Max Skipped Runs", description = "Consecutive runs skipped under load before a throttled run is launched anyway")
+    int maxSkippedRuns() default 3;
+
+    @AttributeDefinition(name = "Throttled Batch Size", description = "Deletions per commit of runs launched under load")
+    int throttledBatchSize() default 50;
+
+    @AttributeDefinition(name = "Off-Peak Start Hour", description = "Hour of day (0-23) at which the off-peak window starts")
+    int offPeakStartHour() default 22;
+
+    @AttributeDefinition(name = "Off-Peak End Hour", description = "Hour of day (0-23) at which the off-peak window ends")
+    int offPeakEndHour() default 6;
+
+    @AttributeDefinition(name = "Off-Peak Batch Size", description = "Deletions per commit of runs in the off-peak window, 0 for the engine default")
+    int offPeakBatchSize() default 1000;
+
+    @AttributeDefinition(name = "Catch-Up Cron Expression",
+            description = "Additional runs to catch up on the backlog, e.g. 0 0/15 22-23,0-5 * * ? for every 15 minutes off-peak. Only used in adaptive mode")
+    String catchUpExpression() default StringUtils.EMPTY;
+}
@@ -0,0 +1,146 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+
+/**
+ * Lazily iterates the paths of expired pages in fixed size windows.
+ *
+ * <p>Windows are keyset pages of the expiry query ordered by creation date and path: each window
+ * starts at the creation date of the last page returned, skipping the pages at that date whose path
+ * does not sort after the last path returned. Unlike offsets, this stays correct while earlier pages
+ * are being deleted, and only one window of hits and the last key are held at a time. Pages at that
+ * date that are still there, e.g. held back ones, are skipped by offset only if a whole window
+ * consists of them. Within a window paths are returned in descending order, so child pages come
+ * before their parents.</p>
+ */
+public class ExpiredPageSource implements Iterator<String> {
+
+    private final QueryBuilder queryBuilder;
+    private final Session session;
+    private final String path;
+    private final boolean includeSelf;
+    private final Calendar cutoff;
+    private final int windowSize;
+    private final PurgeMetrics purgeMetrics;
+
+    private final Deque<String> window = new ArrayDeque<>();
+    private Calendar lastCreated;
+    private String lastPath;
+    private boolean exhausted;
+    private long count;
+    private long windows;
+
+    /**
+     * @param lowerBound earliest creation date of the pages, or null for no lower bound
+     * @param purgeMetrics receives the query time of each window, may be null
+     */
+    public ExpiredPageSource(QueryBuilder queryBuilder, Session session, String path, boolean includeSelf,
+            Calendar lowerBound, Calendar cutoff, int windowSize, PurgeMetrics purgeMetrics) {
+        this.queryBuilder = queryBuilder;
+        this.session = session;
+        this.path = path;
+        this.includeSelf = includeSelf;
+        this.lastCreated = lowerBound;
+        this.cutoff = cutoff;
+        this.windowSize = Math.max(1, windowSize);
+        this.purgeMetrics = purgeMetrics;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (window.isEmpty() && !exhausted) {
+            fetchWindow();
+        }
+        return !window.isEmpty();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        count++;
+        return window.pop();
+    }
+
+    /**
+     * Returns the number of paths returned so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of windows queried so far.
+     */
+    public long getWindows() {
+        return windows;
+    }
+
+    private void fetchWindow() {
+        int skip = 0;
+        List<String> paths = new ArrayList<>(windowSize);
+        while (paths.isEmpty() && !exhausted) {
+            List<Hit> hits = query(skip);
+            exhausted = hits.size() < windowSize;
+            int seen = 0;
+            for (Hit hit : hits) {
+                try {
+                    String hitPath = hit.getPath();
+                    Calendar created = hit.getResource().getValueMap().get(ExpiryQuery.CREATED_PROPERTY, Calendar.class);
+                    if (created == null) {
+                        paths.add(hitPath);
+                        continue;
+                    }
+                    if (lastCreated != null && created.getTimeInMillis() == lastCreated.getTimeInMillis()
+                            && lastPath != null && hitPath.compareTo(lastPath) <= 0) {
+                        seen++;
+                        continue;
+                    }
+                    lastCreated = created;
+                    lastPath = hitPath;
+                    paths.add(hitPath);
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException("Unable to read expired page hit", e);
+                }
+            }
+            skip += seen;
+        }
+        paths.sort(Collections.reverseOrder());
+        window.addAll(paths);
+    }
+
+    private List<Hit> query(int offset) {
+        Map<String, String> queryMap = ExpiryQuery.createPredicates(path, includeSelf, lastCreated, cutoff);
+        queryMap.put("1_orderby", "@" + ExpiryQuery.CREATED_PROPERTY);
+        queryMap.put("1_orderby.sort", "asc");
+        queryMap.put("2_orderby", "@jcr:path");
+        queryMap.put("2_orderby.sort", "asc");
+        queryMap.put("p.offset", String.valueOf(offset));
+        queryMap.put("p.limit", String.valueOf(windowSize));
+        queryMap.put("p.guessTotal", "true");
+
+        long queryStart = System.nanoTime();
+        List<Hit> hits = queryBuilder.createQuery(PredicateGroup.create(queryMap), session).getResult().getHits();
+        if (purgeMetrics != null) {
+            purgeMetrics.recordQuery(System.nanoTime() - queryStart);
+        }
+        windows++;
+        return hits;
+    }
+}
@@ -0,0 +1,104 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+
+import org.apache.jackrabbit.util.ISO8601;
+
+/**
+ * Builds the page expiry queries so that all purge paths use the same, index backed predicate:
+ * {@code jcr:created} of {@code cq:Page} compared against ISO 8601 dates, which QueryBuilder turns
+ * into typed {@code xs:dateTime} constraints served by the {@code practisePageExpiry} index.
+ */
+public final class ExpiryQuery {
+
+    public static final String PAGE_TYPE = "cq:Page";
+    public static final String CREATED_PROPERTY = "jcr:created";
+
+    private ExpiryQuery() {
+    }
+
+    /**
+     * Returns QueryBuilder predicates for pages below the path created before the cutoff.
+     *
+     * @param lowerBound optional inclusive lower bound of the creation date, may be null
+     */
+    public static Map<String, String> createPredicates(String path, boolean includeSelf, Calendar lowerBound, Calendar cutoff) {
+        Map<String, String> queryMap = new HashMap<>();
+        queryMap.put("path", path);
+        if (includeSelf) {
+            queryMap.put("path.self", "true");
+        }
+        queryMap.put("type", PAGE_TYPE);
+        queryMap.put("1_daterange.property", CREATED_PROPERTY);
+        if (lowerBound != null) {
+            queryMap.put("1_daterange.lowerBound", ISO8601.format(lowerBound));
+            queryMap.put("1_daterange.lowerOperation", ">=");
+        }
+        queryMap.put("1_daterange.upperBound", ISO8601.format(cutoff));
+        queryMap.put("1_daterange.upperOperation", "<=");
+        return queryMap;
+    }
+
+    /**
+     * Returns the JCR-SQL2 equivalent of {@link #createPredicates(String, boolean, Calendar, Calendar)}
+     * without a lower bound, used to check the query plan.
+     */
+    public static String toSql2(String path, Calendar cutoff) {
+        return "SELECT [jcr:path] FROM [" + PAGE_TYPE + "] AS page"
+                + " WHERE ISDESCENDANTNODE(page, '" + path.replace("'", "''") + "')"
+                + " AND page.[" + CREATED_PROPERTY + "] <= CAST('" + ISO8601.format(cutoff) + "' AS DATE)";
+    }
+
+    /**
+     * Lazily iterates the paths of the pages below the path created before the cutoff in path order.
+     * The rows are read from the query result as they are iterated.
+     */
+    public static Iterator<String> findInPathOrder(Session session, String path, Calendar cutoff) throws RepositoryException {
+        QueryManager queryManager = session.getWorkspace().getQueryManager();
+        Query query = queryManager.createQuery(toSql2(path, cutoff) + " ORDER BY [jcr:path]", Query.JCR_SQL2);
+        NodeIterator nodes = query.execute().getNodes();
+        return new Iterator<String>() {
+
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public String next() {
+                try {
+                    return nodes.nextNode().getPath();
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException("Unable to read expired page", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the plan Oak chooses for the expiry query below the path.
+     */
+    public static String explain(Session session, String path, Calendar cutoff) throws RepositoryException {
+        QueryManager queryManager = session.getWorkspace().getQueryManager();
+        Query query = queryManager.createQuery("explain " + toSql2(path, cutoff), Query.JCR_SQL2);
+        RowIterator rows = query.execute().getRows();
+        return rows.hasNext() ? rows.nextRow().getValue("plan").getString() : "";
+    }
+
+    /**
+     * Returns true if the plan reads the repository by traversal instead of an index.
+     */
+    public static boolean isTraversal(String plan) {
+        return plan.contains("/* traverse");
+    }
+}
@@ -0,0 +1,548 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.PagePaths;
+import com.adobe.practise.website.core.service.config.PageExpiryQueueConfig;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * In-memory queue of the pages below the configured purge roots ordered by their creation date, kept
+ * current from page creation and deletion events so that a purge only reads the pages that have
+ * expired instead of querying the whole tree.
+ *
+ * <p>Pages are grouped per purge root into buckets of a fixed creation time span. For every purged
+ * path the queue remembers the cutoff up to which a purge completed, its high-water mark, and the
+ * pages that purge held back, e.g. because they are still referenced. The next purge of the path
+ * only reads the buckets between the mark and its new cutoff plus the held back pages, so its cost
+ * follows the number of newly expired pages. Pages that are added with a creation date at or before
+ * a mark, e.g. by a move or a reconcile, are held back for that mark's path right away. Marks are
+ * kept in memory only; a path without a mark reads all buckets up to the cutoff once.</p>
+ *
+ * <p>Events can be missed, e.g. while the component is inactive, so a reconcile compares the queue
+ * with the repository on startup and on a schedule and repairs every difference. Events that cannot
+ * be applied take the queue out of use until an immediate reconcile has run. The queue uses its own
+ * service resolver, so events are not held up by purges using the resolver pool.</p>
+ */
+@Component(service = {PageExpiryQueue.class, PageExpiryQueueMBean.class, ResourceChangeListener.class},
+        immediate = true,
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=PageExpiryQueue",
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        }
+)
+@Designate(ocd = PageExpiryQueueConfig.class)
+public class PageExpiryQueue implements PageExpiryQueueMBean, ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PageExpiryQueue.class);
+
+    private static final String RECONCILE_JOB_NAME = "PageExpiryQueueReconcile";
+    private static final String REPAIR_JOB_NAME = "PageExpiryQueueRepair";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private Scheduler scheduler;
+
+    private final ConcurrentSkipListMap<String, Long> createdTimes = new ConcurrentSkipListMap<>();
+    private final Map<String, ConcurrentSkipListMap<Long, Set<String>>> rootBuckets = new ConcurrentHashMap<>();
+    private final Map<String, ProcessedMark> marks = new ConcurrentHashMap<>();
+
+    private volatile String[] rootPaths = new String[0];
+    private volatile long bucketMillis;
+    private volatile boolean ready;
+    private volatile long lastReconcileDrift;
+    private volatile long lastReconcileTime;
+
+    @Activate
+    @Modified
+    protected void activate(PageExpiryQueueConfig config) {
+        List<String> roots = new ArrayList<>();
+        for (String root : config.resource_paths()) {
+            roots.add(PagePaths.normalize(root));
+        }
+        // Buckets and roots may change, the queue is reloaded by the next reconcile
+        synchronized (this) {
+            ready = false;
+            clear();
+            this.bucketMillis = Math.max(1, config.bucketMinutes()) * 60000L;
+            this.rootPaths = roots.toArray(new String[0]);
+        }
+        LOG.info("Page expiry queue activated for roots: {}", roots);
+
+        scheduler.unschedule(RECONCILE_JOB_NAME);
+        if (StringUtils.isNotBlank(config.reconcileExpression())) {
+            scheduler.schedule((Runnable) this::reconcile,
+                    scheduler.EXPR(config.reconcileExpression()).name(RECONCILE_JOB_NAME).canRunConcurrently(false));
+        }
+        if (config.reconcileOnStartup()) {
+            scheduler.schedule((Runnable) this::reconcile, scheduler.NOW().name("PageExpiryQueueStartup").canRunConcurrently(false));
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        scheduler.unschedule(RECONCILE_JOB_NAME);
+        scheduler.unschedule(REPAIR_JOB_NAME);
+        ready = false;
+        clear();
+    }
+
+    /**
+     * Returns true once the queue has been reconciled and the path lies below one of its roots.
+     */
+    public boolean covers(String path) {
+        return ready && path != null && isUnderRoot(PagePaths.normalize(path));
+    }
+
+    /**
+     * Returns the pages of a purge of the path: those created after the path's high-water mark and at
+     * or before the cutoff, plus the pages the previous purge held back. Paths are sorted deepest first
+     * so that descendants come before their ancestors like in the expiry query windows. The mark only
+     * advances once the purge calls {@link DueScan#complete(ResourceResolver)}.
+     *
+     * @param includeSelf whether the page at the path is a candidate itself or only its descendants
+     */
+    public DueScan getDue(String path, boolean includeSelf, Calendar cutoff) {
+        String root = PagePaths.normalize(path);
+        long cutoffMillis = cutoff.getTimeInMillis();
+        long from;
+        // A page added behind a started purge can be both held back and in the bucket range
+        Set<String> due = new HashSet<>();
+        synchronized (this) {
+            ProcessedMark mark = marks.computeIfAbsent(root, key -> new ProcessedMark());
+            mark.scanCutoff = Math.max(mark.scanCutoff, cutoffMillis);
+            from = mark.highWater;
+            for (String pagePath : mark.heldBack) {
+                if (isCandidate(root, includeSelf, pagePath) && isCreatedIn(pagePath, Long.MIN_VALUE, cutoffMillis)) {
+                    due.add(pagePath);
+                }
+            }
+        }
+        if (cutoffMillis > from) {
+            ConcurrentSkipListMap<Long, Set<String>> buckets = getBuckets(root);
+            long firstBucket = from == Long.MIN_VALUE ? Long.MIN_VALUE : bucketOf(from);
+            for (Map.Entry<Long, Set<String>> bucket : buckets.subMap(firstBucket, true, cutoffMillis, true).entrySet()) {
+                boolean wholeBucketDue = bucket.getKey() > from && bucket.getKey() + bucketMillis - 1 <= cutoffMillis;
+                for (String pagePath : bucket.getValue()) {
+                    if (isCandidate(root, includeSelf, pagePath) && (wholeBucketDue || isCreatedIn(pagePath, from, cutoffMillis))) {
+                        due.add(pagePath);
+                    }
+                }
+            }
+        }
+        List<String> pages = new ArrayList<>(due);
+        pages.sort(Collections.reverseOrder());
+        return new DueScan(root, cutoffMillis, pages);
+    }
+
+    /**
+     * Returns true if a purge of the path with the cutoff would find at least one page, i.e. a held back
+     * page or a page created after the path's high-water mark and at or before the cutoff.
+     *
+     * @param includeSelf whether the page at the path is a candidate itself or only its descendants
+     */
+    public boolean hasDue(String path, boolean includeSelf, Calendar cutoff) {
+        String root = PagePaths.normalize(path);
+        long cutoffMillis = cutoff.getTimeInMillis();
+        ProcessedMark mark = marks.get(root);
+        long from = mark == null ? Long.MIN_VALUE : mark.highWater;
+        if (mark != null) {
+            for (String pagePath : mark.heldBack) {
+                if (isCandidate(root, includeSelf, pagePath) && isCreatedIn(pagePath, Long.MIN_VALUE, cutoffMillis)) {
+                    return true;
+                }
+            }
+        }
+        if (cutoffMillis <= from) {
+            return false;
+        }
+        long firstBucket = from == Long.MIN_VALUE ? Long.MIN_VALUE : bucketOf(from);
+        for (Set<String> bucket : getBuckets(root).subMap(firstBucket, true, cutoffMillis, true).values()) {
+            for (String pagePath : bucket) {
+                if (isCandidate(root, includeSelf, pagePath) && isCreatedIn(pagePath, from, cutoffMillis)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lazily iterates, in path order, the pages below the path created at or before the cutoff. The
+     * pages are read from the path map as they are iterated, so no list of the due pages is built.
+     */
+    public Iterator<String> iterateDueInPathOrder(String path, Calendar cutoff) {
+        String root = PagePaths.normalize(path);
+        long cutoffMillis = cutoff.getTimeInMillis();
+        Iterator<Map.Entry<String, Long>> pages = createdTimes.subMap(root + "/", PagePaths.descendantUpperBound(root))
+                .entrySet().iterator();
+        return new Iterator<String>() {
+
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && pages.hasNext()) {
+                    Map.Entry<String, Long> page = pages.next();
+                    if (page.getValue() <= cutoffMillis) {
+                        next = page.getKey();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        Set<String> removed = new LinkedHashSet<>();
+        Set<String> added = new LinkedHashSet<>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            if (change.getType() == ResourceChange.ChangeType.REMOVED && !PagePaths.isContentPath(path)) {
+                removed.add(PagePaths.normalize(path));
+            } else {
+                added.add(PagePaths.toPagePath(path));
+            }
+        }
+
+        for (String path : removed) {
+            removeSubtree(path);
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            for (String pagePath : added) {
+                if (!isUnderRoot(pagePath)) {
+                    continue;
+                }
+                Resource page = resolver.getResource(pagePath);
+                if (page == null || !page.isResourceType(NameConstants.NT_PAGE)) {
+                    removePage(pagePath);
+                } else {
+                    updatePage(pagePath, readCreated(page));
+                }
+            }
+        } catch (LoginException | RuntimeException e) {
+            // Purges fall back to the expiry query until the queue has been reconciled again
+            ready = false;
+            LOG.error("Error applying page changes, page expiry queue is stale until it is reconciled: ", e);
+            scheduler.schedule((Runnable) this::reconcile, scheduler.NOW().name(REPAIR_JOB_NAME).canRunConcurrently(false));
+        }
+    }
+
+    /**
+     * Loads the creation date of every page below the configured roots, adding pages the queue
+     * misses and dropping queued pages that no longer exist. Events keep being applied meanwhile.
+     */
+    @Override
+    public void reconcile() {
+        long start = System.currentTimeMillis();
+        long drift = 0;
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            Session session = resolver.adaptTo(Session.class);
+            Set<String> seen = new HashSet<>();
+            for (String root : rootPaths) {
+                Map<String, String> queryMap = new HashMap<>();
+                queryMap.put("path", root);
+                queryMap.put("type", NameConstants.NT_PAGE);
+                queryMap.put("p.limit", "-1");
+                queryMap.put("p.guessTotal", "true");
+
+                Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
+                SearchResult result = query.getResult();
+                for (Hit hit : result.getHits()) {
+                    String pagePath = hit.getPath();
+                    seen.add(pagePath);
+                    if (updatePage(pagePath, readCreated(hit.getResource()))) {
+                        drift++;
+                    }
+                }
+            }
+            for (String pagePath : new ArrayList<>(createdTimes.keySet())) {
+                // Pages created since the query ran are unseen too, only drop those that are gone
+                if (!seen.contains(pagePath) && resolver.getResource(pagePath) == null && removePage(pagePath)) {
+                    drift++;
+                }
+            }
+            ready = true;
+            lastReconcileDrift = drift;
+            lastReconcileTime = System.currentTimeMillis();
+            LOG.info("Page expiry queue reconciled with {} pages in {} buckets in {} ms, {} differences repaired",
+                    createdTimes.size(), getBucketCount(), System.currentTimeMillis() - start, drift);
+        } catch (Exception e) {
+            LOG.error("Error reconciling page expiry queue: ", e);
+        }
+    }
+
+    @Override
+    public int getPageCount() {
+        return createdTimes.size();
+    }
+
+    @Override
+    public int getBucketCount() {
+        int count = 0;
+        for (Map<Long, Set<String>> buckets : rootBuckets.values()) {
+            count += buckets.size();
+        }
+        return count;
+    }
+
+    @Override
+    public int getHeldBackCount() {
+        int count = 0;
+        for (ProcessedMark mark : marks.values()) {
+            count += mark.heldBack.size();
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public long getLastReconcileDrift() {
+        return lastReconcileDrift;
+    }
+
+    @Override
+    public long getLastReconcileTime() {
+        return lastReconcileTime;
+    }
+
+    /**
+     * Queues a page under its creation date, moving it if it was queued under another one.
+     *
+     * @return true if the queue changed
+     */
+    synchronized boolean updatePage(String pagePath, Calendar created) {
+        if (created == null) {
+            return removePage(pagePath);
+        }
+        long createdMillis = created.getTimeInMillis();
+        Long previous = createdTimes.put(pagePath, createdMillis);
+        if (previous != null) {
+            if (previous == createdMillis) {
+                return false;
+            }
+            removeFromBucket(pagePath, previous);
+        }
+        getBuckets(pagePath).computeIfAbsent(bucketOf(createdMillis), key -> ConcurrentHashMap.newKeySet()).add(pagePath);
+        // A page added behind a mark, or behind a running purge, is not in the buckets that purges still read
+        for (Map.Entry<String, ProcessedMark> mark : marks.entrySet()) {
+            ProcessedMark value = mark.getValue();
+            if (createdMillis <= Math.max(value.highWater, value.scanCutoff) && PagePaths.isSameOrDescendant(mark.getKey(), pagePath)) {
+                value.heldBack.add(pagePath);
+            }
+        }
+        return true;
+    }
+
+    synchronized boolean removePage(String pagePath) {
+        Long previous = createdTimes.remove(pagePath);
+        if (previous == null) {
+            return false;
+        }
+        removeFromBucket(pagePath, previous);
+        for (ProcessedMark mark : marks.values()) {
+            mark.heldBack.remove(pagePath);
+        }
+        return true;
+    }
+
+    private void removeSubtree(String path) {
+        List<String> pages = new ArrayList<>();
+        if (createdTimes.containsKey(path)) {
+            pages.add(path);
+        }
+        pages.addAll(createdTimes.subMap(path + "/", PagePaths.descendantUpperBound(path)).keySet());
+        for (String pagePath : pages) {
+            removePage(pagePath);
+        }
+        marks.keySet().removeIf(markPath -> PagePaths.isSameOrDescendant(path, markPath));
+    }
+
+    private void removeFromBucket(String pagePath, long createdMillis) {
+        long bucket = bucketOf(createdMillis);
+        ConcurrentSkipListMap<Long, Set<String>> buckets = getBuckets(pagePath);
+        Set<String> pages = buckets.get(bucket);
+        if (pages != null && pages.remove(pagePath) && pages.isEmpty()) {
+            buckets.remove(bucket);
+        }
+    }
+
+    /**
+     * Returns the buckets of the outermost configured root containing the path, which also holds the
+     * pages of any root nested in it.
+     */
+    private ConcurrentSkipListMap<Long, Set<String>> getBuckets(String path) {
+        String owner = null;
+        for (String root : rootPaths) {
+            if (PagePaths.isSameOrDescendant(root, path) && (owner == null || root.length() < owner.length())) {
+                owner = root;
+            }
+        }
+        return owner == null ? new ConcurrentSkipListMap<>() : rootBuckets.computeIfAbsent(owner, key -> new ConcurrentSkipListMap<>());
+    }
+
+    private long bucketOf(long createdMillis) {
+        return Math.floorDiv(createdMillis, bucketMillis) * bucketMillis;
+    }
+
+    private boolean isCreatedIn(String pagePath, long fromExclusive, long cutoffMillis) {
+        Long created = createdTimes.get(pagePath);
+        return created != null && created > fromExclusive && created <= cutoffMillis;
+    }
+
+    private boolean isCandidate(String root, boolean includeSelf, String pagePath) {
+        return includeSelf ? PagePaths.isSameOrDescendant(root, pagePath)
+                : !root.equals(pagePath) && PagePaths.isSameOrDescendant(root, pagePath);
+    }
+
+    private boolean isUnderRoot(String path) {
+        for (String root : rootPaths) {
+            if (PagePaths.isSameOrDescendant(root, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ResourceResolver getServiceResourceResolver() throws LoginException {
+        Map<String, Object> authInfo = new HashMap<>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
+        return resolverFactory.getServiceResourceResolver(authInfo);
+    }
+
+    private synchronized void clear() {
+        createdTimes.clear();
+        rootBuckets.clear();
+        marks.clear();
+    }
+
+    private Calendar readCreated(Resource page) {
+        return page.getValueMap().get(ExpiryQuery.CREATED_PROPERTY, Calendar.class);
+    }
+
+    /**
+     * Processed state of one purged path.
+     */
+    private static final class ProcessedMark {
+
+        /** Creation time up to which the last completed purge of the path read the buckets. */
+        private volatile long highWater = Long.MIN_VALUE;
+
+        /** Highest cutoff of a purge of the path that has started, which may not complete. */
+        private volatile long scanCutoff = Long.MIN_VALUE;
+
+        /** Pages at or before the mark that are still due. */
+        private final Set<String> heldBack = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * The due pages of one purge of a path, see {@link #getDue(String, boolean, Calendar)}.
+     */
+    public final class DueScan implements Iterable<String> {
+
+        private final String path;
+        private final long cutoffMillis;
+        private final List<String> pages;
+
+        private DueScan(String path, long cutoffMillis, List<String> pages) {
+            this.path = path;
+            this.cutoffMillis = cutoffMillis;
+            this.pages = pages;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return pages.iterator();
+        }
+
+        public int size() {
+            return pages.size();
+        }
+
+        /**
+         * Records that the purge went through all pages of the scan and committed. The path's mark
+         * advances to the cutoff and the scanned pages that still exist are held back for the next purge.
+         */
+        public void complete(ResourceResolver resolver) {
+            List<String> remaining = new ArrayList<>();
+            for (String pagePath : pages) {
+                if (resolver.getResource(pagePath) != null) {
+                    remaining.add(pagePath);
+                }
+            }
+            synchronized (PageExpiryQueue.this) {
+                ProcessedMark mark = marks.computeIfAbsent(path, key -> new ProcessedMark());
+                mark.heldBack.removeAll(pages);
+                for (String pagePath : remaining) {
+                    if (createdTimes.containsKey(pagePath)) {
+                        mark.heldBack.add(pagePath);
+                    }
+                }
+                mark.highWater = Math.max(mark.highWater, cutoffMillis);
+            }
+            LOG.debug("Expiry queue mark of {} advanced to {}, {} pages held back", path, cutoffMillis, remaining.size());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.adobe.practise.website.core.service.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Page Expiry Queue Configuration")
+public @interface PageExpiryQueueConfig {
+
+    @AttributeDefinition(name = "Purge Roots", description = "Page paths purged by the delete page scheduler or the retention"
+            + " policies, e.g. /content/practise. Only pages below them are tracked, each root with its own buckets; purges"
+            + " of other paths query the repository")
+    String[] resource_paths() default {};
+
+    @AttributeDefinition(name = "Bucket Minutes", description = "Creation time span grouped into one bucket")
+    int bucketMinutes() default 60;
+
+    @AttributeDefinition(name = "Reconcile On Startup", description = "Load the queue from the repository when the component starts")
+    boolean reconcileOnStartup() default true;
+
+    @AttributeDefinition(name = "Reconcile Cron Expression",
+            description = "Full reconciles with the repository that repair missed events, empty to only reconcile on startup")
+    String reconcileExpression() default "0 0 3 ? * SUN";
+}
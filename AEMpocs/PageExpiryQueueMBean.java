@@ -0,0 +1,30 @@
+package com.adobe.practise.website.core.service.impl;
+
+/**
+ * JMX view and operations of the page expiry queue.
+ */
+public interface PageExpiryQueueMBean {
+
+    int getPageCount();
+
+    int getBucketCount();
+
+    /**
+     * Number of pages purges held back, which every purge of their path reads again.
+     */
+    int getHeldBackCount();
+
+    boolean isReady();
+
+    /**
+     * Number of pages the last reconcile had to add or drop, i.e. changes missed by the events.
+     */
+    long getLastReconcileDrift();
+
+    long getLastReconcileTime();
+
+    /**
+     * Compares the queue with the repository and repairs all differences.
+     */
+    void reconcile();
+}
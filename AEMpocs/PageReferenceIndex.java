@@ -0,0 +1,390 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.PagePaths;
+import com.adobe.practise.website.core.service.config.PageReferenceIndexConfig;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * In-memory index of the links between pages, kept current from resource change events so that a
+ * purge can check each candidate for inbound links without a reference search.
+ *
+ * <p>A link is any string property below a page's {@code jcr:content} that points to another page
+ * under a configured root, e.g. {@code /content/site/en/page.html#top}. For every source page the
+ * index keeps its link targets, and for every target page the pages linking to it.</p>
+ *
+ * <p>Purges that check references are blocked until the index is built. A failed rebuild is retried
+ * with an exponential backoff, and a rebuild can be triggered over JMX at any time. Changes that
+ * cannot be applied leave the index stale, so they block purges and schedule a rebuild as well. The
+ * index uses its own service resolver, so events are not held up by purges using the resolver pool.</p>
+ */
+@Component(service = {PageReferenceIndex.class, PageReferenceIndexMBean.class, ResourceChangeListener.class},
+        immediate = true,
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=PageReferenceIndex",
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        }
+)
+@Designate(ocd = PageReferenceIndexConfig.class)
+public class PageReferenceIndex implements PageReferenceIndexMBean, ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PageReferenceIndex.class);
+
+    private static final String REBUILD_JOB_NAME = "PageReferenceIndexRebuild";
+    private static final String RETRY_JOB_NAME = "PageReferenceIndexRebuildRetry";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private Scheduler scheduler;
+
+    private final ConcurrentSkipListMap<String, Set<String>> outbound = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Set<String>> inbound = new ConcurrentSkipListMap<>();
+
+    private volatile String[] rootPaths = new String[0];
+    private volatile boolean ready;
+    private volatile String status = "not built";
+    private volatile int consecutiveFailures;
+    private volatile long lastRebuildTime;
+    private long retryDelayMillis;
+    private long maxRetryDelayMillis;
+
+    @Activate
+    @Modified
+    protected void activate(PageReferenceIndexConfig config) {
+        List<String> roots = new ArrayList<>();
+        for (String root : config.resource_paths()) {
+            roots.add(PagePaths.normalize(root));
+        }
+        this.rootPaths = roots.toArray(new String[0]);
+        this.retryDelayMillis = Math.max(1, config.retryDelaySeconds()) * 1000L;
+        this.maxRetryDelayMillis = Math.max(retryDelayMillis, config.maxRetryDelaySeconds() * 1000L);
+        LOG.info("Page reference index activated for roots: {}", roots);
+        scheduler.unschedule(RETRY_JOB_NAME);
+        consecutiveFailures = 0;
+        if (config.rebuildOnStartup()) {
+            scheduler.schedule((Runnable) this::rebuild, scheduler.NOW().name(REBUILD_JOB_NAME).canRunConcurrently(false));
+        } else if (!ready) {
+            status = "not built, rebuild on startup is disabled; trigger a rebuild over JMX";
+            LOG.warn("Page reference index is not rebuilt on startup, purges checking references are blocked until a rebuild"
+                    + " is triggered over JMX");
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        scheduler.unschedule(RETRY_JOB_NAME);
+        ready = false;
+        clear();
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public String getStatus() {
+        return ready ? "ready" : status;
+    }
+
+    @Override
+    public int getLinkingPageCount() {
+        return outbound.size();
+    }
+
+    @Override
+    public int getLinkedPageCount() {
+        return inbound.size();
+    }
+
+    @Override
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public long getLastRebuildTime() {
+        return lastRebuildTime;
+    }
+
+    /**
+     * Returns the pages linking to the page itself or to a page below it, leaving out links from
+     * within that subtree, i.e. the links that deleting the subtree would break.
+     */
+    public Set<String> getExternalReferrers(String pagePath) {
+        Set<String> referrers = new LinkedHashSet<>();
+        addExternal(referrers, pagePath, inbound.get(pagePath));
+        for (Map.Entry<String, Set<String>> entry
+                : inbound.subMap(pagePath + "/", PagePaths.descendantUpperBound(pagePath)).entrySet()) {
+            addExternal(referrers, pagePath, entry.getValue());
+        }
+        return referrers;
+    }
+
+    /**
+     * Returns the pages linking to the given page.
+     */
+    public Set<String> getReferrers(String pagePath) {
+        Set<String> referrers = inbound.get(pagePath);
+        return referrers == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(referrers);
+    }
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        Set<String> removed = new LinkedHashSet<>();
+        Set<String> refreshed = new LinkedHashSet<>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            if (change.getType() == ResourceChange.ChangeType.REMOVED && !PagePaths.isContentPath(path)) {
+                removed.add(PagePaths.normalize(path));
+            } else {
+                refreshed.add(PagePaths.toPagePath(path));
+            }
+        }
+
+        for (String path : removed) {
+            removeSubtree(path);
+        }
+        if (refreshed.isEmpty()) {
+            return;
+        }
+
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            for (String pagePath : refreshed) {
+                if (!isUnderRoot(pagePath)) {
+                    continue;
+                }
+                Resource page = resolver.getResource(pagePath);
+                if (page == null || !page.isResourceType(NameConstants.NT_PAGE)) {
+                    updatePage(pagePath, Collections.<String>emptySet());
+                } else {
+                    updatePage(pagePath, readLinks(page));
+                }
+            }
+        } catch (LoginException | RuntimeException e) {
+            // The links of the changed pages are unknown now, purges must not rely on the index until it is rebuilt
+            ready = false;
+            scheduleRetry(e);
+        }
+    }
+
+    /**
+     * Drops the current state and reloads the links of every page below the configured roots.
+     * A failure schedules a retry, a successful rebuild cancels a pending one.
+     */
+    @Override
+    public void rebuild() {
+        scheduler.unschedule(RETRY_JOB_NAME);
+        ready = false;
+        status = "rebuilding";
+        long start = System.currentTimeMillis();
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            Session session = resolver.adaptTo(Session.class);
+            clear();
+            for (String root : rootPaths) {
+                Map<String, String> queryMap = new HashMap<>();
+                queryMap.put("path", root);
+                queryMap.put("type", NameConstants.NT_PAGE);
+                queryMap.put("p.limit", "-1");
+                queryMap.put("p.guessTotal", "true");
+
+                Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
+                SearchResult result = query.getResult();
+                for (Hit hit : result.getHits()) {
+                    updatePage(hit.getPath(), readLinks(hit.getResource()));
+                }
+            }
+            ready = true;
+            consecutiveFailures = 0;
+            lastRebuildTime = System.currentTimeMillis();
+            LOG.info("Page reference index rebuilt with {} linking pages and {} linked pages in {} ms", outbound.size(),
+                    inbound.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            scheduleRetry(e);
+        }
+    }
+
+    /**
+     * Schedules the next rebuild attempt, doubling the delay after every consecutive failure.
+     */
+    private synchronized void scheduleRetry(Exception cause) {
+        consecutiveFailures++;
+        long delay = retryDelayMillis;
+        for (int i = 1; i < consecutiveFailures && delay < maxRetryDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxRetryDelayMillis);
+        status = "failed " + consecutiveFailures + " times, rebuilding in " + delay / 1000 + " s: " + cause;
+        LOG.error("Error updating page reference index, purges checking references are blocked, rebuild {} in {} s: ",
+                consecutiveFailures, delay / 1000, cause);
+        scheduler.schedule((Runnable) this::rebuild, scheduler.AT(new Date(System.currentTimeMillis() + delay))
+                .name(RETRY_JOB_NAME).canRunConcurrently(false));
+    }
+
+    /**
+     * Replaces the link targets recorded for a page and updates the inbound links of the targets.
+     */
+    synchronized void updatePage(String pagePath, Set<String> targets) {
+        Set<String> previous = targets.isEmpty() ? outbound.remove(pagePath) : outbound.put(pagePath, targets);
+        if (previous != null) {
+            for (String target : previous) {
+                if (!targets.contains(target)) {
+                    Set<String> referrers = inbound.get(target);
+                    if (referrers != null && referrers.remove(pagePath) && referrers.isEmpty()) {
+                        inbound.remove(target);
+                    }
+                }
+            }
+        }
+        for (String target : targets) {
+            inbound.computeIfAbsent(target, key -> ConcurrentHashMap.newKeySet()).add(pagePath);
+        }
+    }
+
+    private void removeSubtree(String path) {
+        List<String> pages = new ArrayList<>();
+        if (outbound.containsKey(path)) {
+            pages.add(path);
+        }
+        pages.addAll(outbound.subMap(path + "/", PagePaths.descendantUpperBound(path)).keySet());
+        for (String pagePath : pages) {
+            updatePage(pagePath, Collections.<String>emptySet());
+        }
+    }
+
+    private void addExternal(Set<String> referrers, String subtree, Set<String> sources) {
+        if (sources == null) {
+            return;
+        }
+        for (String source : sources) {
+            if (!PagePaths.isSameOrDescendant(subtree, source)) {
+                referrers.add(source);
+            }
+        }
+    }
+
+    private boolean isUnderRoot(String path) {
+        for (String root : rootPaths) {
+            if (PagePaths.isSameOrDescendant(root, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void clear() {
+        outbound.clear();
+        inbound.clear();
+    }
+
+    /**
+     * Returns the pages under the roots linked from the string properties of the page content.
+     */
+    private Set<String> readLinks(Resource page) {
+        Resource content = page.getChild(PagePaths.JCR_CONTENT);
+        if (content == null) {
+            return Collections.emptySet();
+        }
+        Set<String> targets = new HashSet<>();
+        collectLinks(content, page.getPath(), targets);
+        return targets.isEmpty() ? Collections.<String>emptySet() : Collections.unmodifiableSet(targets);
+    }
+
+    private void collectLinks(Resource resource, String pagePath, Set<String> targets) {
+        for (Object value : resource.getValueMap().values()) {
+            if (value instanceof String) {
+                addLink((String) value, pagePath, targets);
+            } else if (value instanceof String[]) {
+                for (String item : (String[]) value) {
+                    addLink(item, pagePath, targets);
+                }
+            }
+        }
+        for (Resource child : resource.getChildren()) {
+            collectLinks(child, pagePath, targets);
+        }
+    }
+
+    private void addLink(String value, String pagePath, Set<String> targets) {
+        if (value == null || !value.startsWith("/")) {
+            return;
+        }
+        String target = toLinkTarget(value);
+        if (!target.equals(pagePath) && isUnderRoot(target)) {
+            targets.add(target);
+        }
+    }
+
+    /**
+     * Reduces a link to the page it points to, dropping the fragment, the query, the selectors and
+     * extension, and any path inside the page content.
+     */
+    static String toLinkTarget(String link) {
+        String target = link;
+        int end = indexOfAny(target, '#', '?');
+        if (end >= 0) {
+            target = target.substring(0, end);
+        }
+        target = PagePaths.toPagePath(target);
+        int lastSlash = target.lastIndexOf('/');
+        int dot = target.indexOf('.', lastSlash + 1);
+        if (dot > 0) {
+            target = target.substring(0, dot);
+        }
+        return PagePaths.normalize(target);
+    }
+
+    private static int indexOfAny(String value, char first, char second) {
+        int a = value.indexOf(first);
+        int b = value.indexOf(second);
+        return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+    }
+
+    private ResourceResolver getServiceResourceResolver() throws LoginException {
+        Map<String, Object> authInfo = new HashMap<>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
+        return resolverFactory.getServiceResourceResolver(authInfo);
+    }
+}
@@ -0,0 +1,21 @@
+package com.adobe.practise.website.core.service.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Page Reference Index Configuration")
+public @interface PageReferenceIndexConfig {
+
+    @AttributeDefinition(name = "Root Paths", description = "Subtrees whose pages are indexed as link sources and targets")
+    String[] resource_paths() default {"/content"};
+
+    @AttributeDefinition(name = "Rebuild On Startup", description = "Rebuild the index from the repository when the component starts")
+    boolean rebuildOnStartup() default true;
+
+    @AttributeDefinition(name = "Retry Delay Seconds", description = "Delay before the first retry of a failed rebuild,"
+            + " doubled after every further failure")
+    int retryDelaySeconds() default 30;
+
+    @AttributeDefinition(name = "Max Retry Delay Seconds", description = "Upper bound of the delay between rebuild retries")
+    int maxRetryDelaySeconds() default 3600;
+}
@@ -0,0 +1,27 @@
+package com.adobe.practise.website.core.service.impl;
+
+/**
+ * JMX view and operations of the page reference index.
+ */
+public interface PageReferenceIndexMBean {
+
+    int getLinkingPageCount();
+
+    int getLinkedPageCount();
+
+    boolean isReady();
+
+    /**
+     * Why purges checking references are blocked, or "ready".
+     */
+    String getStatus();
+
+    int getConsecutiveFailures();
+
+    long getLastRebuildTime();
+
+    /**
+     * Rebuilds the index now, cancelling a pending retry.
+     */
+    void rebuild();
+}
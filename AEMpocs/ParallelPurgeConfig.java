@@ -0,0 +1,14 @@
+package com.adobe.practise.website.core.service.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Parallel Page Purge Configuration")
+public @interface ParallelPurgeConfig {
+
+    @AttributeDefinition(name = "Parallelism", description = "Number of subtrees purged at the same time")
+    int parallelism() default 4;
+
+    @AttributeDefinition(name = "Timeout (minutes)", description = "Maximum time to wait for all subtrees of a purge to finish")
+    int timeoutMinutes() default 120;
+}
@@ -0,0 +1,241 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.service.BulkDeleteReport;
+import com.adobe.practise.website.core.service.config.ParallelPurgeConfig;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * Purges expired pages by splitting the root into its child page subtrees and purging those on a
+ * bounded thread pool, each worker with its own service resolver.
+ */
+@Component(service = ParallelPurgeService.class)
+@Designate(ocd = ParallelPurgeConfig.class)
+public class ParallelPurgeService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelPurgeService.class);
+
+    /**
+     * Resolver pool leases left for work besides the subtree workers, i.e. the scheduler run and the
+     * purge planner.
+     */
+    private static final int RESERVED_LEASES = 2;
+
+    @Reference
+    private ServiceResolverPool resolverPool;
+
+    @Reference
+    private DeleteOldPagesServiceImpl deleteOldPagesService;
+
+    @Reference
+    private PurgeMetrics purgeMetrics;
+
+    /** Guards the executor: purges submit under the read lock, a configuration change swaps it under the write lock. */
+    private final ReadWriteLock executorLock = new ReentrantReadWriteLock();
+
+    private ExecutorService executor;
+    private volatile int parallelism;
+    private volatile int timeoutMinutes;
+
+    @Activate
+    @Modified
+    protected void activate(ParallelPurgeConfig config) {
+        int newParallelism = Math.max(1, config.parallelism());
+        int maxParallelism = Math.max(1, resolverPool.getMaxSize() - RESERVED_LEASES);
+        if (newParallelism > maxParallelism) {
+            // Each worker holds a lease for its whole subtree, more workers would starve the other pool users
+            LOG.warn("Parallelism {} exceeds the {} leases the resolver pool of size {} can spare, using {}",
+                    newParallelism, maxParallelism, resolverPool.getMaxSize(), maxParallelism);
+            newParallelism = maxParallelism;
+        }
+        ExecutorService previous;
+        executorLock.writeLock().lock();
+        try {
+            previous = executor;
+            this.parallelism = newParallelism;
+            this.timeoutMinutes = config.timeoutMinutes();
+            this.executor = Executors.newFixedThreadPool(newParallelism, new PurgeThreadFactory());
+        } finally {
+            executorLock.writeLock().unlock();
+        }
+        // Subtree purges already running finish on the previous executor, their checkpoints stay consistent
+        if (previous != null) {
+            drain(previous);
+        }
+        LOG.info("Parallel purge activated with parallelism: {}", newParallelism);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        executorLock.writeLock().lock();
+        try {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        } finally {
+            executorLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Purges the pages below the root that are older than one month.
+     */
+    public BulkDeleteReport purgeOneMonthAgo(String rootPath) throws LoginException, InterruptedException {
+        return purge(rootPath, DeleteOldPagesServiceImpl.oneMonthAgo(), 0);
+    }
+
+    /**
+     * Purges the pages below the root that are older than one month with the given batch size,
+     * 0 or less uses the engine default.
+     */
+    public BulkDeleteReport purgeOneMonthAgo(String rootPath, int batchSize) throws LoginException, InterruptedException {
+        return purge(rootPath, DeleteOldPagesServiceImpl.oneMonthAgo(), batchSize);
+    }
+
+    /**
+     * Purges the pages below the root created before the cutoff, one task per child page subtree,
+     * and returns the combined report of all subtrees.
+     */
+    public BulkDeleteReport purge(String rootPath, Calendar cutoff, int batchSize) throws LoginException, InterruptedException {
+        long start = System.currentTimeMillis();
+        List<String> subtrees = getChildPages(rootPath);
+
+        List<Callable<BulkDeleteReport>> tasks = new ArrayList<>();
+        for (String subtree : subtrees) {
+            tasks.add(() -> deleteOldPagesService.purgeSubtree(
+                    BulkDeleteEngine.jobName(DeleteOldPagesServiceImpl.SUBTREE_JOB_PREFIX, subtree), subtree, true, cutoff, batchSize));
+        }
+        LOG.info("Purging {} subtrees of {} with parallelism {}", tasks.size(), rootPath, parallelism);
+
+        BulkDeleteReport summary = new BulkDeleteReport(BulkDeleteEngine.jobName("parallel", rootPath));
+        summary.setCompleted(true);
+        List<Future<BulkDeleteReport>> futures = new ArrayList<>(tasks.size());
+        executorLock.readLock().lock();
+        try {
+            if (executor == null) {
+                throw new IllegalStateException("Parallel purge service is not active");
+            }
+            for (Callable<BulkDeleteReport> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+        } finally {
+            executorLock.readLock().unlock();
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        for (int i = 0; i < futures.size(); i++) {
+            Future<BulkDeleteReport> future = futures.get(i);
+            try {
+                BulkDeleteReport report = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                LOG.info("Subtree purge finished - {}", report);
+                summary.merge(report);
+            } catch (ExecutionException e) {
+                LOG.error("Error purging subtree {}: ", subtrees.get(i), e.getCause());
+                summary.setCompleted(false);
+            } catch (TimeoutException | CancellationException e) {
+                future.cancel(true);
+                LOG.error("Purge of subtree {} did not finish within {} minutes", subtrees.get(i), timeoutMinutes);
+                summary.setCompleted(false);
+            } catch (InterruptedException e) {
+                for (Future<BulkDeleteReport> pending : futures) {
+                    pending.cancel(true);
+                }
+                throw e;
+            }
+        }
+        summary.setDurationMs(System.currentTimeMillis() - start);
+        purgeMetrics.recordRun(summary, summary.getDurationMs());
+        if (!summary.isCompleted()) {
+            purgeMetrics.recordFailure("parallel", "not all subtrees of " + rootPath + " were purged");
+        }
+        LOG.info("Parallel purge finished - {}", summary);
+        return summary;
+    }
+
+    /**
+     * Returns the paths of the child pages of the root, the subtrees a purge of the root is split into.
+     */
+    public List<String> getChildPages(String rootPath) throws LoginException {
+        try (ServiceResolverPool.Lease lease = resolverPool.lease()) {
+            return getChildPages(lease.getResolver(), rootPath);
+        }
+    }
+
+    /**
+     * Returns the paths of the child pages of the root read with the given resolver, for callers that
+     * already hold a lease and must not take a second one.
+     */
+    public List<String> getChildPages(ResourceResolver resolver, String rootPath) {
+        List<String> children = new ArrayList<>();
+        Resource root = resolver.getResource(rootPath);
+        if (root != null) {
+            for (Resource child : root.getChildren()) {
+                if (child.isResourceType(NameConstants.NT_PAGE)) {
+                    children.add(child.getPath());
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Stops the executor from taking new subtrees and waits in the background for the running ones,
+     * interrupting them only once the purge timeout has passed.
+     */
+    private void drain(ExecutorService previous) {
+        previous.shutdown();
+        int timeout = timeoutMinutes;
+        Thread drainer = new Thread(() -> {
+            try {
+                if (!previous.awaitTermination(timeout, TimeUnit.MINUTES)) {
+                    LOG.warn("Subtree purges of the previous configuration did not finish within {} minutes, interrupting them", timeout);
+                    previous.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                previous.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }, "parallel-purge-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private static final class PurgeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "parallel-purge-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
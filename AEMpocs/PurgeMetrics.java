@@ -0,0 +1,165 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.commons.metrics.Counter;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.metrics.Timer;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import com.adobe.practise.website.core.service.BulkDeleteReport;
+
+/**
+ * Records timings and counts of the expired page purges as Sling metrics, and the state that is
+ * not a metric, such as the time of the last successful run, through JMX.
+ *
+ * <p>Timers: {@code practise.purge.run}, {@code practise.purge.query}, {@code practise.purge.delete}
+ * and {@code practise.purge.commit}. Counters: {@code practise.purge.pages.scanned},
+ * {@code practise.purge.pages.deleted}, {@code practise.purge.failures} and
+ * {@code practise.purge.scheduler.launches}.</p>
+ */
+@Component(service = {PurgeMetrics.class, PurgeMetricsMBean.class},
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=PurgeMetrics"
+        }
+)
+public class PurgeMetrics implements PurgeMetricsMBean {
+
+    private static final String PREFIX = "practise.purge.";
+
+    /** Weight of the latest commit in the moving average of the commit latency. */
+    private static final double COMMIT_LATENCY_WEIGHT = 0.2;
+
+    @Reference
+    private MetricsService metricsService;
+
+    private Timer runTimer;
+    private Timer queryTimer;
+    private Timer deleteTimer;
+    private Timer commitTimer;
+    private Counter scannedCounter;
+    private Counter deletedCounter;
+    private Counter failureCounter;
+    private Counter launchCounter;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong lastRunDurationMs = new AtomicLong();
+    private final AtomicLong lastRunPagesDeleted = new AtomicLong();
+    private final AtomicLong lastSuccessTime = new AtomicLong();
+    private volatile String lastFailure;
+    private volatile double recentCommitLatencyMs;
+
+    @Activate
+    protected void activate() {
+        runTimer = metricsService.timer(PREFIX + "run");
+        queryTimer = metricsService.timer(PREFIX + "query");
+        deleteTimer = metricsService.timer(PREFIX + "delete");
+        commitTimer = metricsService.timer(PREFIX + "commit");
+        scannedCounter = metricsService.counter(PREFIX + "pages.scanned");
+        deletedCounter = metricsService.counter(PREFIX + "pages.deleted");
+        failureCounter = metricsService.counter(PREFIX + "failures");
+        launchCounter = metricsService.counter(PREFIX + "scheduler.launches");
+    }
+
+    /**
+     * Records a finished purge run. Runs whose report is not completed, e.g. a parallel purge with
+     * failed subtrees, do not move the last success time.
+     */
+    public void recordRun(BulkDeleteReport report, long durationMs) {
+        runs.incrementAndGet();
+        runTimer.update(durationMs, TimeUnit.MILLISECONDS);
+        lastRunDurationMs.set(durationMs);
+        lastRunPagesDeleted.set(report.getPagesDeleted());
+        if (report.isCompleted()) {
+            lastSuccessTime.set(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records a failed purge or launch; the source names the component, e.g. {@code scheduler}.
+     */
+    public void recordFailure(String source, String detail) {
+        failureCounter.increment();
+        lastFailure = source + ": " + detail;
+    }
+
+    public void recordLaunch() {
+        launchCounter.increment();
+    }
+
+    public void recordQuery(long nanos) {
+        queryTimer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordDelete(long nanos) {
+        deleteTimer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordCommit(long nanos) {
+        commitTimer.update(nanos, TimeUnit.NANOSECONDS);
+        double millis = nanos / 1_000_000d;
+        synchronized (this) {
+            recentCommitLatencyMs = recentCommitLatencyMs == 0 ? millis
+                    : recentCommitLatencyMs * (1 - COMMIT_LATENCY_WEIGHT) + millis * COMMIT_LATENCY_WEIGHT;
+        }
+    }
+
+    public void recordPages(long scanned, long deleted) {
+        scannedCounter.increment(scanned);
+        deletedCounter.increment(deleted);
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failureCounter.getCount();
+    }
+
+    @Override
+    public long getPagesScanned() {
+        return scannedCounter.getCount();
+    }
+
+    @Override
+    public long getPagesDeleted() {
+        return deletedCounter.getCount();
+    }
+
+    @Override
+    public long getLastRunDurationMs() {
+        return lastRunDurationMs.get();
+    }
+
+    @Override
+    public long getLastRunPagesDeleted() {
+        return lastRunPagesDeleted.get();
+    }
+
+    @Override
+    public long getLastSuccessTime() {
+        return lastSuccessTime.get();
+    }
+
+    @Override
+    public long getSecondsSinceLastSuccess() {
+        long last = lastSuccessTime.get();
+        return last == 0 ? -1 : (System.currentTimeMillis() - last) / 1000;
+    }
+
+    @Override
+    public double getRecentCommitLatencyMs() {
+        return recentCommitLatencyMs;
+    }
+
+    @Override
+    public String getLastFailure() {
+        return lastFailure;
+    }
+}
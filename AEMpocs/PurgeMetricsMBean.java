@@ -0,0 +1,33 @@
+package com.adobe.practise.website.core.service.impl;
+
+/**
+ * JMX view of the expired page purges, for alerting on slow or failing purges.
+ */
+public interface PurgeMetricsMBean {
+
+    long getRuns();
+
+    long getFailures();
+
+    long getPagesScanned();
+
+    long getPagesDeleted();
+
+    long getLastRunDurationMs();
+
+    long getLastRunPagesDeleted();
+
+    /**
+     * Epoch millis of the last purge run that completed, 0 if none completed since activation.
+     */
+    long getLastSuccessTime();
+
+    long getSecondsSinceLastSuccess();
+
+    /**
+     * Exponential moving average of the purge commit latency, 0 before the first commit.
+     */
+    double getRecentCommitLatencyMs();
+
+    String getLastFailure();
+}
@@ -0,0 +1,99 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.Calendar;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.service.BulkDeleteReport;
+
+/**
+ * Runs the expired page purge in-process for the direct execution mode of the delete page scheduler.
+ *
+ * <p>{@link #TOPIC} purges a whole root, {@link #TOPIC_SUBTREE} one shard of a root including the
+ * subtree page itself. A failed or incomplete purge returns {@link JobResult#FAILED} so that Sling
+ * retries the job according to its queue configuration. Retries continue from the purge checkpoint.</p>
+ */
+@Component(service = JobConsumer.class,
+        immediate = true,
+        property = {
+                JobConsumer.PROPERTY_TOPICS + "=" + PurgePageJobConsumer.TOPIC,
+                JobConsumer.PROPERTY_TOPICS + "=" + PurgePageJobConsumer.TOPIC_SUBTREE
+        }
+)
+public class PurgePageJobConsumer implements JobConsumer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PurgePageJobConsumer.class);
+
+    public static final String TOPIC = "com/adobe/practise/website/purge/expired";
+    public static final String TOPIC_SUBTREE = "com/adobe/practise/website/purge/subtree";
+
+    public static final String PROPERTY_PATH = "path";
+    public static final String PROPERTY_BATCH_SIZE = "batchSize";
+    public static final String PROPERTY_PARALLEL = "parallel";
+    public static final String PROPERTY_CUTOFF = "cutoff";
+
+    @Reference
+    private DeleteOldPagesServiceImpl deleteOldPagesService;
+
+    @Reference
+    private ParallelPurgeService parallelPurgeService;
+
+    @Reference
+    private PurgeMetrics purgeMetrics;
+
+    @Override
+    public JobResult process(Job job) {
+        String path = job.getProperty(PROPERTY_PATH, String.class);
+        if (path == null) {
+            LOG.error("Purge job {} has no path, cancelling it", job.getId());
+            return JobResult.CANCEL;
+        }
+        int batchSize = job.getProperty(PROPERTY_BATCH_SIZE, 0);
+        boolean parallel = job.getProperty(PROPERTY_PARALLEL, false);
+        try {
+            BulkDeleteReport report;
+            if (TOPIC_SUBTREE.equals(job.getTopic())) {
+                report = purgeShard(path, job.getProperty(PROPERTY_CUTOFF, 0L), batchSize);
+            } else if (parallel) {
+                report = parallelPurgeService.purgeOneMonthAgo(path, batchSize);
+            } else {
+                report = deleteOldPagesService.purgeOneMonthAgo(path, batchSize);
+            }
+            if (!report.isCompleted()) {
+                LOG.warn("Purge job {} of {} did not complete, retry {} - {}", job.getId(), path, job.getRetryCount(), report);
+                return JobResult.FAILED;
+            }
+            LOG.info("Purge job {} of {} finished - {}", job.getId(), path, report);
+            return JobResult.OK;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return JobResult.FAILED;
+        } catch (Exception e) {
+            purgeMetrics.recordFailure("job", e.toString());
+            LOG.error("Purge job {} of {} failed, retry {}: ", job.getId(), path, job.getRetryCount(), e);
+            return JobResult.FAILED;
+        }
+    }
+
+    private BulkDeleteReport purgeShard(String path, long cutoffMillis, int batchSize)
+            throws LoginException, RepositoryException, PersistenceException {
+        Calendar cutoff = DeleteOldPagesServiceImpl.oneMonthAgo();
+        if (cutoffMillis > 0) {
+            cutoff.setTimeInMillis(cutoffMillis);
+        }
+        long start = System.currentTimeMillis();
+        BulkDeleteReport report = deleteOldPagesService.purgeSubtree(
+                BulkDeleteEngine.jobName(DeleteOldPagesServiceImpl.SUBTREE_JOB_PREFIX, path), path, true, cutoff, batchSize);
+        purgeMetrics.recordRun(report, System.currentTimeMillis() - start);
+        return report;
+    }
+}
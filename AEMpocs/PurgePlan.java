@@ -0,0 +1,147 @@
+package com.adobe.practise.website.core.service;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Outcome of a dry-run purge, i.e. what a purge with the same root and cutoff would delete.
+ */
+public class PurgePlan {
+
+    private final String rootPath;
+    private final Calendar cutoff;
+    private final Map<String, Long> subtreePages = new TreeMap<>();
+    private final Map<String, Set<String>> references = new TreeMap<>();
+    private long candidatePages;
+    private long pagesToDelete;
+    private long nodes;
+    private long binaryBytes;
+    private long referenceChecks;
+    private long estimatedBatches;
+    private long estimatedDurationMs;
+    private long planningMs;
+    private String reportPath;
+
+    public PurgePlan(String rootPath, Calendar cutoff) {
+        this.rootPath = rootPath;
+        this.cutoff = cutoff;
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public Calendar getCutoff() {
+        return cutoff;
+    }
+
+    /**
+     * Returns the number of candidate pages per subtree, keyed by the child page of the root.
+     */
+    public Map<String, Long> getSubtreePages() {
+        return subtreePages;
+    }
+
+    public void addSubtreePage(String subtree) {
+        subtreePages.merge(subtree, 1L, Long::sum);
+    }
+
+    /**
+     * Returns the pages outside the candidate set that reference a candidate, keyed by the candidate.
+     */
+    public Map<String, Set<String>> getReferences() {
+        return references;
+    }
+
+    public void addReference(String candidate, String referencingPage) {
+        references.computeIfAbsent(candidate, key -> new TreeSet<>()).add(referencingPage);
+    }
+
+    /**
+     * Returns the number of pages matched by the expiry query, including those below another candidate.
+     */
+    public long getCandidatePages() {
+        return candidatePages;
+    }
+
+    public void setCandidatePages(long candidatePages) {
+        this.candidatePages = candidatePages;
+    }
+
+    /**
+     * Returns the number of delete operations, i.e. candidates that are not below another candidate.
+     */
+    public long getPagesToDelete() {
+        return pagesToDelete;
+    }
+
+    public void setPagesToDelete(long pagesToDelete) {
+        this.pagesToDelete = pagesToDelete;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(long nodes) {
+        this.nodes = nodes;
+    }
+
+    public long getBinaryBytes() {
+        return binaryBytes;
+    }
+
+    public void setBinaryBytes(long binaryBytes) {
+        this.binaryBytes = binaryBytes;
+    }
+
+    public long getReferenceChecks() {
+        return referenceChecks;
+    }
+
+    public void setReferenceChecks(long referenceChecks) {
+        this.referenceChecks = referenceChecks;
+    }
+
+    public long getEstimatedBatches() {
+        return estimatedBatches;
+    }
+
+    public void setEstimatedBatches(long estimatedBatches) {
+        this.estimatedBatches = estimatedBatches;
+    }
+
+    public long getEstimatedDurationMs() {
+        return estimatedDurationMs;
+    }
+
+    public void setEstimatedDurationMs(long estimatedDurationMs) {
+        this.estimatedDurationMs = estimatedDurationMs;
+    }
+
+    public long getPlanningMs() {
+        return planningMs;
+    }
+
+    public void setPlanningMs(long planningMs) {
+        this.planningMs = planningMs;
+    }
+
+    public String getReportPath() {
+        return reportPath;
+    }
+
+    public void setReportPath(String reportPath) {
+        this.reportPath = reportPath;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PurgePlan[root=%s, candidates=%d, toDelete=%d, nodes=%d, binaryBytes=%d, referenced=%d, "
+                + "batches=%d, estimatedMs=%d, report=%s]", rootPath, candidatePages, pagesToDelete, nodes, binaryBytes,
+                references.size(), estimatedBatches, estimatedDurationMs, reportPath);
+    }
+}
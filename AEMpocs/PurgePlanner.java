@@ -0,0 +1,321 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.jcr.resource.api.JcrResourceConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.JsonStreamWriter;
+import com.adobe.practise.website.core.search.PagePaths;
+import com.adobe.practise.website.core.service.PurgePlan;
+import com.adobe.practise.website.core.service.config.PurgePlannerConfig;
+import com.day.cq.wcm.commons.ReferenceSearch;
+
+/**
+ * Dry run of the expired page purge. Runs the same candidate query as the purge without deleting
+ * anything and writes a JSON report under {@code /var}, so that purge windows can be sized upfront.
+ *
+ * <p>The report lists the candidates per child subtree of the root, the nodes and binary bytes
+ * below the pages that would be deleted, pages outside the candidate set that reference a candidate,
+ * and the expected number of batches and duration. Binary bytes are an upper bound of the space
+ * reclaimed, since the data store shares identical binaries and frees them on garbage collection.</p>
+ */
+@Component(service = {PurgePlanner.class, PurgePlannerMBean.class},
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=PurgePlanner"
+        }
+)
+@Designate(ocd = PurgePlannerConfig.class)
+public class PurgePlanner implements PurgePlannerMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PurgePlanner.class);
+
+    @Reference
+    private ServiceResolverPool resolverPool;
+
+    @Reference
+    private BulkDeleteEngine bulkDeleteEngine;
+
+    @Reference
+    private PurgeMetrics purgeMetrics;
+
+    @Reference
+    private PageReferenceIndex pageReferenceIndex;
+
+    @Reference
+    private PageExpiryQueue pageExpiryQueue;
+
+    private String reportPath;
+    private String referenceSearchRoot;
+    private int maxReferenceChecks;
+    private double defaultPagesPerSecond;
+    private volatile String lastReportPath;
+
+    @Activate
+    @Modified
+    protected void activate(PurgePlannerConfig config) {
+        this.reportPath = config.reportPath();
+        this.referenceSearchRoot = config.referenceSearchRoot();
+        this.maxReferenceChecks = config.maxReferenceChecks();
+        this.defaultPagesPerSecond = config.defaultPagesPerSecond() > 0 ? config.defaultPagesPerSecond() : 50;
+    }
+
+    @Override
+    public String planOneMonthAgo(String rootPath) {
+        try {
+            return plan(rootPath, DeleteOldPagesServiceImpl.oneMonthAgo(), 0).getReportPath();
+        } catch (Exception e) {
+            LOG.error("Unable to plan purge of {}: ", rootPath, e);
+            return "Failed: " + e;
+        }
+    }
+
+    @Override
+    public String getLastReportPath() {
+        return lastReportPath;
+    }
+
+    /**
+     * Plans a purge of the pages below the root created before the cutoff and writes the report.
+     *
+     * @param batchSize deletions per commit of the planned purge, 0 or less for the engine default
+     */
+    public PurgePlan plan(String rootPath, Calendar cutoff, int batchSize)
+            throws LoginException, RepositoryException, IOException {
+        long start = System.currentTimeMillis();
+        PurgePlan plan = new PurgePlan(rootPath, cutoff);
+        try (ServiceResolverPool.Lease lease = resolverPool.lease()) {
+            ResourceResolver resolver = lease.getResolver();
+
+            // Candidates arrive in path order, so only the kept candidates that are string prefixes of the
+            // current path are held to find candidates deleted together with a candidate ancestor
+            Deque<String> keptAncestors = new ArrayDeque<>();
+            long candidates = 0;
+            long pagesToDelete = 0;
+            long[] volume = new long[2];
+            ReferenceSearch referenceSearch = new ReferenceSearch().setSearchRoot(referenceSearchRoot);
+            Iterator<String> expired = findCandidatesInPathOrder(resolver, rootPath, cutoff);
+            while (expired.hasNext()) {
+                String candidate = expired.next();
+                candidates++;
+                plan.addSubtreePage(getSubtree(rootPath, candidate));
+                while (!keptAncestors.isEmpty() && !candidate.startsWith(keptAncestors.peek())) {
+                    keptAncestors.pop();
+                }
+                if (hasKeptAncestor(keptAncestors, candidate)) {
+                    continue;
+                }
+                keptAncestors.push(candidate);
+                pagesToDelete++;
+                Resource page = resolver.getResource(candidate);
+                Node node = page == null ? null : page.adaptTo(Node.class);
+                if (node != null) {
+                    measure(node, volume);
+                }
+                if (plan.getReferenceChecks() < maxReferenceChecks) {
+                    plan.setReferenceChecks(plan.getReferenceChecks() + 1);
+                    addReferences(plan, referenceSearch, resolver, rootPath, cutoff, candidate);
+                }
+            }
+            plan.setCandidatePages(candidates);
+            plan.setPagesToDelete(pagesToDelete);
+            plan.setNodes(volume[0]);
+            plan.setBinaryBytes(volume[1]);
+
+            int effectiveBatchSize = batchSize > 0 ? batchSize : bulkDeleteEngine.getBatchSize();
+            plan.setEstimatedBatches((pagesToDelete + effectiveBatchSize - 1) / effectiveBatchSize);
+            plan.setEstimatedDurationMs((long) (pagesToDelete * 1000d / getPagesPerSecond()));
+            plan.setPlanningMs(System.currentTimeMillis() - start);
+
+            writeReport(resolver, plan);
+        }
+        lastReportPath = plan.getReportPath();
+        LOG.info("Purge plan finished - {}", plan);
+        return plan;
+    }
+
+    /**
+     * Returns the child page of the root that contains the path.
+     */
+    private String getSubtree(String rootPath, String path) {
+        int end = path.indexOf('/', rootPath.length() + 1);
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    /**
+     * Lazily iterates the candidates in path order, from the expiry queue if it covers the root.
+     */
+    private Iterator<String> findCandidatesInPathOrder(ResourceResolver resolver, String rootPath, Calendar cutoff)
+            throws RepositoryException {
+        if (pageExpiryQueue.covers(rootPath)) {
+            return pageExpiryQueue.iterateDueInPathOrder(rootPath, cutoff);
+        }
+        return ExpiryQuery.findInPathOrder(resolver.adaptTo(Session.class), rootPath, cutoff);
+    }
+
+    /**
+     * Returns true if one of the kept candidates is an ancestor of the path. The kept candidates are all
+     * string prefixes of the path, but a sibling such as {@code /a/b-c} of {@code /a/b/c} is not an ancestor.
+     */
+    private boolean hasKeptAncestor(Deque<String> keptAncestors, String path) {
+        for (String ancestor : keptAncestors) {
+            if (PagePaths.isSameOrDescendant(ancestor, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the page is a candidate itself, i.e. below the root and created before the cutoff.
+     */
+    private boolean isCandidate(ResourceResolver resolver, String rootPath, Calendar cutoff, String pagePath) {
+        if (pagePath.equals(rootPath) || !PagePaths.isSameOrDescendant(rootPath, pagePath)) {
+            return false;
+        }
+        Resource page = resolver.getResource(pagePath);
+        Calendar created = page == null ? null : page.getValueMap().get(ExpiryQuery.CREATED_PROPERTY, Calendar.class);
+        return created != null && !created.after(cutoff);
+    }
+
+    /**
+     * Adds the number of nodes and the binary bytes of the subtree to the volume.
+     */
+    private void measure(Node node, long[] volume) throws RepositoryException {
+        volume[0]++;
+        PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            Property property = properties.nextProperty();
+            if (property.getType() != PropertyType.BINARY) {
+                continue;
+            }
+            if (property.isMultiple()) {
+                for (long length : property.getLengths()) {
+                    volume[1] += Math.max(0, length);
+                }
+            } else {
+                volume[1] += Math.max(0, property.getLength());
+            }
+        }
+        NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            measure(children.nextNode(), volume);
+        }
+    }
+
+    /**
+     * Records the pages referencing the candidate that are neither candidates nor below the candidate,
+     * from the page reference index once it is built and with a reference search before.
+     */
+    private void addReferences(PurgePlan plan, ReferenceSearch referenceSearch, ResourceResolver resolver,
+            String rootPath, Calendar cutoff, String candidate) {
+        if (pageReferenceIndex.isReady()) {
+            for (String referencingPage : pageReferenceIndex.getExternalReferrers(candidate)) {
+                if (!isCandidate(resolver, rootPath, cutoff, referencingPage)) {
+                    plan.addReference(candidate, referencingPage);
+                }
+            }
+            return;
+        }
+        for (ReferenceSearch.Info info : referenceSearch.search(resolver, candidate).values()) {
+            String referencingPage = info.getPage().getPath();
+            if (!PagePaths.isSameOrDescendant(candidate, referencingPage)
+                    && !isCandidate(resolver, rootPath, cutoff, referencingPage)) {
+                plan.addReference(candidate, referencingPage);
+            }
+        }
+    }
+
+    /**
+     * Returns the delete rate of the last purge, or the configured default if none has run yet.
+     */
+    private double getPagesPerSecond() {
+        long duration = purgeMetrics.getLastRunDurationMs();
+        long deleted = purgeMetrics.getLastRunPagesDeleted();
+        return duration > 0 && deleted > 0 ? deleted * 1000d / duration : defaultPagesPerSecond;
+    }
+
+    private void writeReport(ResourceResolver resolver, PurgePlan plan) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            JsonStreamWriter json = new JsonStreamWriter(writer);
+            json.beginObject()
+                    .property("rootPath", plan.getRootPath())
+                    .property("cutoff", ISO8601.format(plan.getCutoff()))
+                    .property("candidatePages", plan.getCandidatePages())
+                    .property("pagesToDelete", plan.getPagesToDelete())
+                    .property("nodes", plan.getNodes())
+                    .property("binaryBytes", plan.getBinaryBytes())
+                    .property("estimatedBatches", plan.getEstimatedBatches())
+                    .property("estimatedDurationMs", plan.getEstimatedDurationMs())
+                    .property("planningMs", plan.getPlanningMs())
+                    .property("referenceChecks", plan.getReferenceChecks());
+            json.name("subtrees").beginObject();
+            for (Map.Entry<String, Long> subtree : plan.getSubtreePages().entrySet()) {
+                json.property(subtree.getKey(), subtree.getValue());
+            }
+            json.endObject();
+            json.name("references").beginObject();
+            for (Map.Entry<String, Set<String>> reference : plan.getReferences().entrySet()) {
+                json.name(reference.getKey()).beginArray();
+                for (String referencingPage : reference.getValue()) {
+                    json.value(referencingPage);
+                }
+                json.endArray();
+            }
+            json.endObject().endObject().flush();
+        }
+
+        Map<String, Object> folderProperties = new HashMap<>();
+        folderProperties.put(JcrConstants.JCR_PRIMARYTYPE, JcrResourceConstants.NT_SLING_FOLDER);
+        Resource folder = ResourceUtil.getOrCreateResource(resolver, reportPath, folderProperties,
+                JcrResourceConstants.NT_SLING_FOLDER, false);
+
+        String name = BulkDeleteEngine.jobName("plan", plan.getRootPath()) + "-" + System.currentTimeMillis() + ".json";
+        Map<String, Object> fileProperties = new HashMap<>();
+        fileProperties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_FILE);
+        Resource file = resolver.create(folder, name, fileProperties);
+
+        Map<String, Object> contentProperties = new HashMap<>();
+        contentProperties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_RESOURCE);
+        contentProperties.put(JcrConstants.JCR_MIMETYPE, "application/json");
+        contentProperties.put(JcrConstants.JCR_ENCODING, StandardCharsets.UTF_8.name());
+        contentProperties.put(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+        contentProperties.put(JcrConstants.JCR_DATA, new ByteArrayInputStream(bytes.toByteArray()));
+        resolver.create(file, JcrConstants.JCR_CONTENT, contentProperties);
+        resolver.commit();
+        plan.setReportPath(file.getPath());
+    }
+}
@@ -0,0 +1,21 @@
+package com.adobe.practise.website.core.service.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Purge Planner Configuration")
+public @interface PurgePlannerConfig {
+
+    @AttributeDefinition(name = "Report Path", description = "Repository path under which dry-run reports are written")
+    String reportPath() default "/var/practise/purge/reports";
+
+    @AttributeDefinition(name = "Reference Search Root", description = "Subtree searched for pages referencing purge candidates")
+    String referenceSearchRoot() default "/content";
+
+    @AttributeDefinition(name = "Max Reference Checks", description = "Maximum number of candidates checked for references, 0 to skip the check")
+    int maxReferenceChecks() default 1000;
+
+    @AttributeDefinition(name = "Default Pages per Second",
+            description = "Delete rate used to estimate the duration when no purge has run since activation")
+    double defaultPagesPerSecond() default 50;
+}
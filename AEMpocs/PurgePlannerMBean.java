@@ -0,0 +1,14 @@
+package com.adobe.practise.website.core.service.impl;
+
+/**
+ * JMX operations of the dry-run purge planner.
+ */
+public interface PurgePlannerMBean {
+
+    /**
+     * Plans a purge of the pages below the root older than one month and returns the report path.
+     */
+    String planOneMonthAgo(String rootPath);
+
+    String getLastReportPath();
+}
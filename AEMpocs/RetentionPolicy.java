@@ -0,0 +1,116 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.PagePaths;
+import com.adobe.practise.website.core.service.config.RetentionPolicyConfig;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * A single configured retention rule: which pages it applies to, when they are due and what
+ * happens to them. Policies are evaluated by the {@link RetentionPolicyEngine}.
+ */
+@Component(service = RetentionPolicy.class, configurationPolicy = ConfigurationPolicy.REQUIRE)
+@Designate(ocd = RetentionPolicyConfig.class, factory = true)
+public class RetentionPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetentionPolicy.class);
+
+    private static final String RESOURCE_TYPE_PROPERTY = "sling:resourceType";
+
+    private volatile String name;
+    private volatile String subtree;
+    private volatile Set<String> templates;
+    private volatile Set<String> resourceTypes;
+    private volatile String ageProperty;
+    private volatile long maxAgeMillis;
+    private volatile String action;
+    private volatile String archivePath;
+    private volatile int priority;
+
+    @Activate
+    @Modified
+    protected void activate(RetentionPolicyConfig config) {
+        this.name = config.name();
+        this.subtree = PagePaths.normalize(config.subtree());
+        this.templates = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(config.templates())));
+        this.resourceTypes = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(config.resourceTypes())));
+        this.ageProperty = config.ageProperty();
+        this.maxAgeMillis = Math.max(0, config.maxAgeMinutes()) * 60000L;
+        this.action = config.action();
+        this.archivePath = PagePaths.normalize(config.archivePath());
+        this.priority = config.priority();
+        LOG.info("Retention policy {} activated: {} pages below {} older than {} minutes by {}", name, action, subtree,
+                config.maxAgeMinutes(), ageProperty);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSubtree() {
+        return subtree;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getArchivePath() {
+        return archivePath;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the date before which pages are due under this policy, relative to the given time.
+     */
+    public Calendar getCutoff(long now) {
+        Calendar cutoff = Calendar.getInstance();
+        cutoff.setTimeInMillis(now - maxAgeMillis);
+        return cutoff;
+    }
+
+    /**
+     * Returns true if the page lies below the subtree, has a matching template and resource type and
+     * its age property is at or before the cutoff.
+     */
+    public boolean matches(Resource page, Calendar cutoff) {
+        if (!PagePaths.isSameOrDescendant(subtree, page.getPath())) {
+            return false;
+        }
+        if (!templates.isEmpty() || !resourceTypes.isEmpty()) {
+            Resource content = page.getChild(PagePaths.JCR_CONTENT);
+            ValueMap properties = content == null ? ValueMap.EMPTY : content.getValueMap();
+            if (!templates.isEmpty() && !templates.contains(properties.get(NameConstants.PN_TEMPLATE, String.class))) {
+                return false;
+            }
+            if (!resourceTypes.isEmpty() && !resourceTypes.contains(properties.get(RESOURCE_TYPE_PROPERTY, String.class))) {
+                return false;
+            }
+        }
+        Calendar age = page.getValueMap().get(ageProperty, Calendar.class);
+        return age != null && !age.after(cutoff);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + action + " below " + subtree + ")";
+    }
+}
@@ -0,0 +1,54 @@
+package com.adobe.practise.website.core.service.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
+
+@ObjectClassDefinition(name = "Page Retention Policy",
+        description = "One retention rule of the purge, create one configuration per rule. Policies replace the built-in one month rule")
+public @interface RetentionPolicyConfig {
+
+    String ACTION_DELETE = "delete";
+    String ACTION_UNPUBLISH = "unpublish";
+    String ACTION_ARCHIVE = "archive";
+
+    @AttributeDefinition(name = "Name", description = "Name of the policy used in logs and reports")
+    String name();
+
+    @AttributeDefinition(name = "Subtree", description = "Path below which the policy applies")
+    String subtree() default "/content";
+
+    @AttributeDefinition(name = "Templates", description = "cq:template values of the pages the policy applies to, empty for all templates")
+    String[] templates() default {};
+
+    @AttributeDefinition(name = "Resource Types",
+            description = "sling:resourceType values of the page content the policy applies to, empty for all resource types")
+    String[] resourceTypes() default {};
+
+    @AttributeDefinition(name = "Age Property",
+            description = "Date property relative to the page the age is measured from, e.g. jcr:content/cq:lastModified. "
+                    + "It must not be earlier than jcr:created, which bounds the candidates of the purge")
+    String ageProperty() default "jcr:created";
+
+    @AttributeDefinition(name = "Max Age (minutes)", description = "Age after which the action is applied, 43200 for 30 days")
+    long maxAgeMinutes() default 43200;
+
+    @AttributeDefinition(name = "Action",
+            description = "delete removes the page, unpublish deactivates published pages, archive moves the page below the archive path",
+            options = {
+                    @Option(label = "Delete", value = RetentionPolicyConfig.ACTION_DELETE),
+                    @Option(label = "Unpublish", value = RetentionPolicyConfig.ACTION_UNPUBLISH),
+                    @Option(label = "Archive", value = RetentionPolicyConfig.ACTION_ARCHIVE)
+            })
+    String action() default ACTION_DELETE;
+
+    @AttributeDefinition(name = "Archive Path",
+            description = "With the archive action, archived pages keep their path relative to the subtree below this path."
+                    + " Pages below the archive path of any policy are excluded from all policies")
+    String archivePath() default "/content/archive";
+
+    @AttributeDefinition(name = "Priority", description = "Policies with a higher priority are checked first, the first matching policy applies")
+    int priority() default 0;
+
+    String webconsole_configurationFactory_nameHint() default "{name}: {action} after {maxAgeMinutes} minutes below {subtree}";
+}
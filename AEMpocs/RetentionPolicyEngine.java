@@ -0,0 +1,334 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.PagePaths;
+import com.adobe.practise.website.core.service.config.RetentionPolicyConfig;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationStatus;
+import com.day.cq.replication.Replicator;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * Evaluates all configured {@link RetentionPolicy retention policies} in one pass over the purge
+ * candidates, so that adding policies does not add queries.
+ *
+ * <p>The candidates of a pass are the pages created before the latest cutoff of all policies, read
+ * once through the expiry queue or the keyset query windows. Every candidate is checked against the
+ * policies in priority order and the first matching one decides: pages to delete are handed on to
+ * the bulk delete engine, pages to unpublish are deactivated right away and pages to archive are
+ * moved once the deletions are done. Pages below the archive path of any archiving policy are
+ * never candidates, whichever policy's subtree contains them. A page to delete that has descendants
+ * due for archiving is kept until they are moved, so that deleting it does not take them along.</p>
+ */
+@Component(service = RetentionPolicyEngine.class)
+public class RetentionPolicyEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetentionPolicyEngine.class);
+
+    private static final String ARCHIVE_FOLDER_TYPE = "sling:OrderedFolder";
+
+    @Reference
+    private Replicator replicator;
+
+    @Reference
+    private PurgeMetrics purgeMetrics;
+
+    private final List<RetentionPolicy> policies = new CopyOnWriteArrayList<>();
+
+    @Reference(service = RetentionPolicy.class, cardinality = ReferenceCardinality.MULTIPLE,
+            policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+    protected void bindPolicy(RetentionPolicy policy) {
+        policies.add(policy);
+    }
+
+    protected void unbindPolicy(RetentionPolicy policy) {
+        policies.remove(policy);
+    }
+
+    public boolean hasPolicies() {
+        return !policies.isEmpty();
+    }
+
+    /**
+     * Returns the latest cutoff of the policies applying below the root, or null if none applies.
+     */
+    public Calendar getCandidateCutoff(String rootPath) {
+        return start(null, rootPath).getCandidateCutoff();
+    }
+
+    /**
+     * Starts a pass over the pages below the root with the policies that apply to it, evaluated at the current time.
+     */
+    public Pass start(ResourceResolver resolver, String rootPath) {
+        String root = PagePaths.normalize(rootPath);
+        List<RetentionPolicy> applicable = new ArrayList<>();
+        for (RetentionPolicy policy : policies) {
+            if (PagePaths.isSameOrDescendant(policy.getSubtree(), root) || PagePaths.isSameOrDescendant(root, policy.getSubtree())) {
+                applicable.add(policy);
+            }
+        }
+        applicable.sort(Comparator.comparingInt(RetentionPolicy::getPriority).reversed());
+        // Archives may lie below the purged root, archived pages are never candidates of any policy
+        List<String> archivePaths = new ArrayList<>();
+        for (RetentionPolicy policy : policies) {
+            if (RetentionPolicyConfig.ACTION_ARCHIVE.equals(policy.getAction())) {
+                archivePaths.add(policy.getArchivePath());
+            }
+        }
+        return new Pass(resolver, applicable, archivePaths, System.currentTimeMillis());
+    }
+
+    /**
+     * One evaluation of the policies over a candidate stream. Not thread safe.
+     */
+    public final class Pass {
+
+        private final ResourceResolver resolver;
+        private final List<RetentionPolicy> policies;
+        private final List<String> archivePaths;
+        private final List<Calendar> cutoffs = new ArrayList<>();
+        private final Map<String, Long> matches = new LinkedHashMap<>();
+        private final List<String[]> archives = new ArrayList<>();
+        private final TreeSet<String> archiveSources = new TreeSet<>();
+        private long unpublished;
+        private long archived;
+        private long failures;
+
+        private Pass(ResourceResolver resolver, List<RetentionPolicy> policies, List<String> archivePaths, long now) {
+            this.resolver = resolver;
+            this.policies = policies;
+            this.archivePaths = archivePaths;
+            for (RetentionPolicy policy : policies) {
+                cutoffs.add(policy.getCutoff(now));
+                matches.put(policy.getName(), 0L);
+            }
+        }
+
+        public boolean hasPolicies() {
+            return !policies.isEmpty();
+        }
+
+        /**
+         * Returns the latest cutoff of the policies, every page due under one of them was created before it.
+         */
+        public Calendar getCandidateCutoff() {
+            Calendar latest = null;
+            for (Calendar cutoff : cutoffs) {
+                if (latest == null || cutoff.after(latest)) {
+                    latest = cutoff;
+                }
+            }
+            return latest;
+        }
+
+        /**
+         * Evaluates the candidates lazily and returns the ones whose matching policy deletes them.
+         */
+        public Iterator<String> filter(Iterator<String> candidates) {
+            return new Iterator<String>() {
+                private String next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && candidates.hasNext()) {
+                        String path = candidates.next();
+                        if (evaluate(path)) {
+                            next = path;
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String path = next;
+                    next = null;
+                    return path;
+                }
+            };
+        }
+
+        /**
+         * Moves the pages due for archiving, each subtree once with its topmost due page, committing every
+         * {@code batchSize} moves. A batch that fails to commit is reverted and counted as failed, the
+         * following batches still run.
+         */
+        public void archive(int batchSize) {
+            archives.sort(Comparator.comparing(archive -> archive[0]));
+            int effectiveBatchSize = Math.max(1, batchSize);
+            String lastMoved = null;
+            int pending = 0;
+            long batches = 0;
+            for (String[] archive : archives) {
+                String path = archive[0];
+                if (lastMoved != null && PagePaths.isSameOrDescendant(lastMoved, path)) {
+                    continue;
+                }
+                String destination = archive[1];
+                String parent = destination.substring(0, destination.lastIndexOf('/'));
+                try {
+                    if (resolver.getResource(path) == null) {
+                        // Removed since it was evaluated, e.g. with a deleted ancestor that was evaluated first
+                        failures++;
+                        LOG.warn("Unable to archive {} to {}, the page no longer exists", path, destination);
+                        continue;
+                    }
+                    ResourceUtil.getOrCreateResource(resolver, parent, ARCHIVE_FOLDER_TYPE, ARCHIVE_FOLDER_TYPE, false);
+                    resolver.move(path, parent);
+                    pending++;
+                    lastMoved = path;
+                    LOG.debug("Archived {} to {}", path, destination);
+                } catch (PersistenceException e) {
+                    failures++;
+                    LOG.warn("Unable to archive {} to {}: {}", path, destination, e.getMessage());
+                }
+                if (pending >= effectiveBatchSize) {
+                    commitArchiveBatch(pending, ++batches);
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                commitArchiveBatch(pending, ++batches);
+            }
+            archives.clear();
+            archiveSources.clear();
+        }
+
+        private void commitArchiveBatch(int moves, long batch) {
+            long commitStart = System.nanoTime();
+            try {
+                resolver.commit();
+                purgeMetrics.recordCommit(System.nanoTime() - commitStart);
+                archived += moves;
+                LOG.debug("Committed archive batch {}, {} pages archived so far", batch, archived);
+            } catch (PersistenceException e) {
+                resolver.revert();
+                failures += moves;
+                LOG.warn("Unable to commit archive batch {} of {} moves: {}", batch, moves, e.getMessage());
+            }
+        }
+
+        public long getUnpublished() {
+            return unpublished;
+        }
+
+        public long getArchived() {
+            return archived;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Returns the number of candidates matched by each policy.
+         */
+        public Map<String, Long> getMatches() {
+            return Collections.unmodifiableMap(matches);
+        }
+
+        /**
+         * Applies the first matching policy to the page, returning true if it is to be deleted.
+         */
+        private boolean evaluate(String path) {
+            if (isArchived(path)) {
+                return false;
+            }
+            Resource page = resolver.getResource(path);
+            if (page == null || !page.isResourceType(NameConstants.NT_PAGE)) {
+                return false;
+            }
+            for (int i = 0; i < policies.size(); i++) {
+                RetentionPolicy policy = policies.get(i);
+                if (!policy.matches(page, cutoffs.get(i))) {
+                    continue;
+                }
+                matches.merge(policy.getName(), 1L, Long::sum);
+                switch (policy.getAction()) {
+                    case RetentionPolicyConfig.ACTION_UNPUBLISH:
+                        unpublish(page);
+                        return false;
+                    case RetentionPolicyConfig.ACTION_ARCHIVE:
+                        String relative = path.equals(policy.getSubtree()) ? "/" + page.getName() : path.substring(policy.getSubtree().length());
+                        archives.add(new String[] {path, policy.getArchivePath() + relative});
+                        archiveSources.add(path);
+                        return false;
+                    default:
+                        if (hasArchivedDescendant(path)) {
+                            LOG.info("Keeping {} until its descendants due for archiving are moved", path);
+                            return false;
+                        }
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if a page below the path is due for archiving in this pass.
+         */
+        private boolean hasArchivedDescendant(String path) {
+            String descendant = archiveSources.ceiling(path + "/");
+            return descendant != null && descendant.startsWith(path + "/");
+        }
+
+        /**
+         * Returns true if the page lies below the archive path of any archiving policy.
+         */
+        private boolean isArchived(String path) {
+            for (String archivePath : archivePaths) {
+                if (PagePaths.isSameOrDescendant(archivePath, path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Deactivates the page if it is published, pages that are not published are left alone.
+         */
+        private void unpublish(Resource page) {
+            ReplicationStatus status = page.adaptTo(ReplicationStatus.class);
+            if (status == null || !status.isActivated()) {
+                return;
+            }
+            try {
+                replicator.replicate(resolver.adaptTo(Session.class), ReplicationActionType.DEACTIVATE, page.getPath());
+                unpublished++;
+                LOG.debug("Unpublished {}", page.getPath());
+            } catch (ReplicationException e) {
+                failures++;
+                LOG.warn("Unable to unpublish {}: {}", page.getPath(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.adobe.practise.website.core.service.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.service.config.ServiceResolverPoolConfig;
+
+/**
+ * Bounded pool of service resource resolvers for the background purge work.
+ *
+ * <p>Resolvers are handed out as {@link Lease}s, to be used in try-with-resources. On release
+ * pending changes are reverted and the resolver is refreshed, so the next lease sees the current
+ * repository state. Leases held longer than the configured time are logged with the stack trace of
+ * where they were acquired.</p>
+ */
+@Component(service = {ServiceResolverPool.class, ServiceResolverPoolMBean.class},
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=ServiceResolverPool"
+        }
+)
+@Designate(ocd = ServiceResolverPoolConfig.class)
+public class ServiceResolverPool implements ServiceResolverPoolMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ServiceResolverPool.class);
+
+    private static final String LEAK_CHECK_JOB_NAME = "ServiceResolverPoolLeakCheck";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private Scheduler scheduler;
+
+    private final Deque<ResourceResolver> idle = new ArrayDeque<>();
+    private final Set<Lease> leased = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+    private final AtomicLong leakWarnings = new AtomicLong();
+
+    private volatile Semaphore permits;
+    private volatile int maxSize;
+    private volatile String subservice;
+    private volatile int acquireTimeoutSeconds;
+    private volatile long leakWarningMillis;
+
+    @Activate
+    @Modified
+    protected void activate(ServiceResolverPoolConfig config) {
+        closeIdle();
+        this.maxSize = Math.max(1, config.maxSize());
+        this.permits = new Semaphore(maxSize, true);
+        this.subservice = config.subservice();
+        this.acquireTimeoutSeconds = config.acquireTimeoutSeconds();
+        this.leakWarningMillis = TimeUnit.SECONDS.toMillis(config.leakWarningSeconds());
+        scheduler.schedule((Runnable) this::checkLeaks,
+                scheduler.PERIODIC(60).name(LEAK_CHECK_JOB_NAME).canRunConcurrently(false));
+        LOG.info("Service resolver pool activated with max size: {}, sub-service: {}", maxSize, subservice);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        scheduler.unschedule(LEAK_CHECK_JOB_NAME);
+        closeIdle();
+    }
+
+    /**
+     * Leases a resolver, waiting up to the configured timeout if all resolvers are in use.
+     *
+     * @throws LoginException if no resolver became free in time or the service login failed
+     */
+    public Lease lease() throws LoginException {
+        Semaphore semaphore = permits;
+        try {
+            if (!semaphore.tryAcquire(acquireTimeoutSeconds, TimeUnit.SECONDS)) {
+                acquireTimeouts.incrementAndGet();
+                throw new LoginException("No service resolver available within " + acquireTimeoutSeconds + " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoginException("Interrupted while waiting for a service resolver", e);
+        }
+        try {
+            Lease lease = new Lease(takeIdle(), semaphore);
+            leased.add(lease);
+            leases.incrementAndGet();
+            return lease;
+        } catch (LoginException | RuntimeException e) {
+            semaphore.release();
+            throw e;
+        }
+    }
+
+    private ResourceResolver takeIdle() throws LoginException {
+        synchronized (idle) {
+            while (!idle.isEmpty()) {
+                ResourceResolver resolver = idle.pop();
+                if (resolver.isLive()) {
+                    return resolver;
+                }
+            }
+        }
+        logins.incrementAndGet();
+        return resolverFactory.getServiceResourceResolver(
+                Collections.<String, Object>singletonMap(ResourceResolverFactory.SUBSERVICE, subservice));
+    }
+
+    private void release(Lease lease) {
+        leased.remove(lease);
+        ResourceResolver resolver = lease.resolver;
+        try {
+            if (resolver.isLive()) {
+                if (resolver.hasChanges()) {
+                    LOG.warn("Reverting uncommitted changes of a service resolver lease");
+                    resolver.revert();
+                }
+                resolver.refresh();
+                synchronized (idle) {
+                    // Resolvers of a previous configuration are not pooled again
+                    if (lease.permits == permits && idle.size() < maxSize) {
+                        idle.push(resolver);
+                        return;
+                    }
+                }
+                resolver.close();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Discarding service resolver that failed on release: ", e);
+            resolver.close();
+        } finally {
+            lease.permits.release();
+        }
+    }
+
+    private void checkLeaks() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : leased) {
+            long age = now - lease.acquired;
+            if (age >= leakWarningMillis && !lease.warned) {
+                lease.warned = true;
+                leakWarnings.incrementAndGet();
+                LOG.warn("Service resolver leased by thread {} has been held for {}s, possible leak",
+                        lease.thread, TimeUnit.MILLISECONDS.toSeconds(age), lease.origin);
+            }
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public int getLeased() {
+        return leased.size();
+    }
+
+    @Override
+    public int getIdle() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    @Override
+    public long getLeases() {
+        return leases.get();
+    }
+
+    @Override
+    public long getLogins() {
+        return logins.get();
+    }
+
+    @Override
+    public long getAcquireTimeouts() {
+        return acquireTimeouts.get();
+    }
+
+    @Override
+    public long getLeakWarnings() {
+        return leakWarnings.get();
+    }
+
+    @Override
+    public long getOldestLeaseAgeSeconds() {
+        long now = System.currentTimeMillis();
+        long oldest = 0;
+        for (Lease lease : leased) {
+            oldest = Math.max(oldest, now - lease.acquired);
+        }
+        return TimeUnit.MILLISECONDS.toSeconds(oldest);
+    }
+
+    @Override
+    public void closeIdle() {
+        synchronized (idle) {
+            while (!idle.isEmpty()) {
+                idle.pop().close();
+            }
+        }
+    }
+
+    /**
+     * A resolver leased from the pool. Closing the lease returns the resolver; the resolver itself
+     * must not be closed by the caller.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final ResourceResolver resolver;
+        private final Semaphore permits;
+        private final long acquired = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final Exception origin = new Exception("Service resolver leased here");
+        private volatile boolean warned;
+        private boolean closed;
+
+        private Lease(ResourceResolver resolver, Semaphore permits) {
+            this.resolver = resolver;
+            this.permits = permits;
+        }
+
+        public ResourceResolver getResolver() {
+            if (closed) {
+                throw new IllegalStateException("Service resolver lease already closed");
+            }
+            return resolver;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.adobe.practise.website.core.service.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Purge Service Resolver Pool Configuration")
+public @interface ServiceResolverPoolConfig {
+
+    @AttributeDefinition(name = "Sub-Service", description = "Service user mapping of the pooled resolvers")
+    String subservice() default "Approver";
+
+    @AttributeDefinition(name = "Max Size", description = "Maximum number of resolvers leased at the same time, further leases wait")
+    int maxSize() default 8;
+
+    @AttributeDefinition(name = "Acquire Timeout (seconds)", description = "Time a lease waits for a free resolver before failing")
+    int acquireTimeoutSeconds() default 30;
+
+    @AttributeDefinition(name = "Leak Warning (seconds)", description = "Leases held longer than this are logged as possible leaks")
+    int leakWarningSeconds() default 1800;
+}
@@ -0,0 +1,28 @@
+package com.adobe.practise.website.core.service.impl;
+
+/**
+ * JMX view of the service resolver pool used by the purge jobs.
+ */
+public interface ServiceResolverPoolMBean {
+
+    int getMaxSize();
+
+    int getLeased();
+
+    int getIdle();
+
+    long getLeases();
+
+    long getLogins();
+
+    long getAcquireTimeouts();
+
+    long getLeakWarnings();
+
+    long getOldestLeaseAgeSeconds();
+
+    /**
+     * Closes the idle resolvers, e.g. after a change of the service user mapping.
+     */
+    void closeIdle();
+}
@@ -0,0 +1,148 @@
+package com.adobe.practise.website.core.benchmark;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+
+/**
+ * Seeds an in-memory Oak repository with a page tree shaped like the practise website content.
+ *
+ * <p>Pages are distributed evenly over a tree of the requested depth below {@link #ROOT}; each page
+ * carries a title, a thumbnail and a few of {@code tagCardinality} tags.</p>
+ */
+public final class BenchmarkContent {
+
+    public static final String ROOT = "/content/benchmark";
+
+    private static final String NODE_TYPES = "<cq = 'http://www.day.com/jcr/cq/1.0'>\n"
+            + "[cq:Page] > nt:unstructured, mix:created\n"
+            + "[cq:PageContent] > nt:unstructured\n";
+
+    private static final int TAGS_PER_PAGE = 3;
+    private static final int COMMIT_SIZE = 1000;
+
+    private final ResourceResolver resolver;
+    private final List<String> pagePaths = new ArrayList<>();
+    private final int tagCardinality;
+
+    private BenchmarkContent(ResourceResolver resolver, int tagCardinality) {
+        this.resolver = resolver;
+        this.tagCardinality = tagCardinality;
+    }
+
+    /**
+     * Creates a new in-memory repository and seeds it with {@code pageCount} pages.
+     */
+    public static BenchmarkContent create(int pageCount, int tagCardinality, int treeDepth) throws Exception {
+        ResourceResolver resolver = MockSling.newResourceResolver(ResourceResolverType.JCR_OAK);
+        CndImporter.registerNodeTypes(new StringReader(NODE_TYPES), resolver.adaptTo(Session.class));
+        BenchmarkContent content = new BenchmarkContent(resolver, tagCardinality);
+        content.seed(pageCount, Math.max(1, treeDepth));
+        return content;
+    }
+
+    public ResourceResolver getResolver() {
+        return resolver;
+    }
+
+    public List<String> getPagePaths() {
+        return pagePaths;
+    }
+
+    /**
+     * Returns the ID of the n-th tag.
+     */
+    public static String tag(int index) {
+        return "practise:benchmark/tag" + index;
+    }
+
+    /**
+     * Runs the JCR-SQL2 equivalent of the search servlet's tag query and returns the matching page paths.
+     */
+    public List<String> queryTaggedPages(String root, String tag, int limit) throws Exception {
+        QueryManager queryManager = resolver.adaptTo(Session.class).getWorkspace().getQueryManager();
+        Query query = queryManager.createQuery("SELECT page.[jcr:path] FROM [cq:Page] AS page"
+                + " INNER JOIN [cq:PageContent] AS content ON ISCHILDNODE(content, page)"
+                + " WHERE ISDESCENDANTNODE(page, '" + root + "') AND content.[cq:tags] = '" + tag + "'", Query.JCR_SQL2);
+        query.setLimit(limit);
+        List<String> paths = new ArrayList<>();
+        RowIterator rows = query.execute().getRows();
+        while (rows.hasNext()) {
+            paths.add(rows.nextRow().getPath("page"));
+        }
+        return paths;
+    }
+
+    public void close() {
+        resolver.close();
+    }
+
+    private void seed(int pageCount, int treeDepth) throws Exception {
+        int branching = Math.max(2, (int) Math.ceil(Math.pow(pageCount, 1d / treeDepth)));
+        Resource root = createPage(resolver.getResource("/"), "content", 0, false);
+        root = createPage(root, "benchmark", 0, false);
+
+        List<Resource> level = new ArrayList<>();
+        level.add(root);
+        int created = 0;
+        while (created < pageCount) {
+            List<Resource> next = new ArrayList<>();
+            for (Resource parent : level) {
+                for (int i = 0; i < branching && created < pageCount; i++) {
+                    next.add(createPage(parent, "page" + i, created, true));
+                    created++;
+                    if (created % COMMIT_SIZE == 0) {
+                        resolver.commit();
+                    }
+                }
+            }
+            level = next;
+        }
+        resolver.commit();
+    }
+
+    private Resource createPage(Resource parent, String name, int index, boolean record) throws Exception {
+        Resource existing = parent.getChild(name);
+        if (existing != null) {
+            return existing;
+        }
+        Map<String, Object> pageProperties = new HashMap<>();
+        pageProperties.put("jcr:primaryType", "cq:Page");
+        Resource page = resolver.create(parent, name, pageProperties);
+
+        Map<String, Object> contentProperties = new HashMap<>();
+        contentProperties.put("jcr:primaryType", "cq:PageContent");
+        contentProperties.put("jcr:title", "Benchmark page " + index);
+        contentProperties.put("jcr:lastModified", Calendar.getInstance());
+        String[] tags = new String[TAGS_PER_PAGE];
+        for (int i = 0; i < TAGS_PER_PAGE; i++) {
+            tags[i] = tag((index + i * 7) % Math.max(1, tagCardinality));
+        }
+        contentProperties.put("cq:tags", tags);
+        Resource content = resolver.create(page, "jcr:content", contentProperties);
+
+        Map<String, Object> imageProperties = new HashMap<>();
+        imageProperties.put("jcr:primaryType", "nt:unstructured");
+        imageProperties.put("fileReference", "/content/dam/benchmark/image" + index + ".jpg");
+        resolver.create(content, "image", imageProperties);
+
+        if (record) {
+            pagePaths.add(page.getPath());
+        }
+        return page;
+    }
+}
@@ -0,0 +1,31 @@
+package com.adobe.practise.website.core.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all searchbar benchmarks and writes the results as JSON, so that they can be compared
+ * between builds.
+ *
+ * <p>Usage: {@code BenchmarkRunner [result file] [include regex]}, defaulting to
+ * {@code target/jmh-result.json} and all benchmarks.</p>
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String resultFile = args.length > 0 ? args[0] : "target/jmh-result.json";
+        String include = args.length > 1 ? args[1] : ".*Benchmark.*";
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+    }
+}
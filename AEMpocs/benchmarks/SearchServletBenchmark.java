@@ -0,0 +1,110 @@
+package com.adobe.practise.website.core.servlets;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.practise.website.core.benchmark.BenchmarkContent;
+import com.adobe.practise.website.core.search.HitProjection;
+import com.adobe.practise.website.core.search.JsonStreamWriter;
+import com.adobe.practise.website.core.search.TagFilter;
+
+/**
+ * Benchmarks the query map building, hit rendering and JSON serialisation of the search servlet
+ * against an in-memory Oak repository.
+ *
+ * <p>QueryBuilder is not available outside AEM, so the end to end benchmark runs the JCR-SQL2
+ * equivalent of the servlet's tag query.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchServletBenchmark {
+
+    @Param({"1000", "10000"})
+    public int pageCount;
+
+    @Param({"10", "200"})
+    public int tagCardinality;
+
+    @Param({"2", "4"})
+    public int treeDepth;
+
+    @Param({"8"})
+    public int pageSize;
+
+    private BenchmarkContent content;
+    private ResourceResolver resolver;
+    private List<Resource> hitPage;
+    private HitProjection projection;
+    private String tag;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        content = BenchmarkContent.create(pageCount, tagCardinality, treeDepth);
+        resolver = content.getResolver();
+        projection = HitProjection.create("description=jcr:description", "modified=jcr:lastModified");
+        tag = BenchmarkContent.tag(tagCardinality / 2);
+        hitPage = new ArrayList<>();
+        for (String path : content.getPagePaths().subList(0, Math.min(pageSize, content.getPagePaths().size()))) {
+            hitPage.add(resolver.getResource(path));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        content.close();
+    }
+
+    @Benchmark
+    public Map<String, String> buildQueryMap() {
+        return SearchResourceTypeServlet.buildQueryMap(BenchmarkContent.ROOT, "benchmark",
+                TagFilter.parse(BenchmarkContent.tag(1) + "," + tag, null, null), 16, pageSize);
+    }
+
+    @Benchmark
+    public String renderHits() throws Exception {
+        StringWriter out = new StringWriter();
+        JsonStreamWriter json = new JsonStreamWriter(out);
+        json.beginObject().name("results").beginArray();
+        for (Resource page : hitPage) {
+            projection.write(json, page);
+        }
+        json.endArray().endObject();
+        return out.toString();
+    }
+
+    @Benchmark
+    public String searchEndToEnd() throws Exception {
+        buildQueryMap();
+        StringWriter out = new StringWriter();
+        JsonStreamWriter json = new JsonStreamWriter(out);
+        json.beginObject().name("results").beginArray();
+        for (String path : content.queryTaggedPages(BenchmarkContent.ROOT, tag, pageSize)) {
+            projection.write(json, resolver.getResource(path));
+        }
+        json.endArray().property("pageSize", pageSize).endObject();
+        return out.toString();
+    }
+}
@@ -0,0 +1,148 @@
+package com.adobe.practise.website.core.search;
+
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.practise.website.core.benchmark.BenchmarkContent;
+import com.adobe.practise.website.core.search.config.TagFacetIndexConfig;
+
+/**
+ * Compares answering a tag listing from the tag facet index with reading the tags of every page
+ * below the root, which is what the tag servlet does without the index, and measures resolving a
+ * combined AND, OR and NOT tag filter from the tag bitmaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagFacetIndexBenchmark {
+
+    @Param({"1000", "10000"})
+    public int pageCount;
+
+    @Param({"10", "200"})
+    public int tagCardinality;
+
+    @Param({"2", "4"})
+    public int treeDepth;
+
+    private BenchmarkContent content;
+    private ResourceResolver resolver;
+    private TagFacetIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        content = BenchmarkContent.create(pageCount, tagCardinality, treeDepth);
+        resolver = content.getResolver();
+        index = new TagFacetIndex();
+        index.activate(config(BenchmarkContent.ROOT));
+        for (String path : content.getPagePaths()) {
+            String[] tags = resolver.getResource(path + "/jcr:content").getValueMap().get("cq:tags", String[].class);
+            Set<String> tagSet = new HashSet<>();
+            for (String tag : tags) {
+                tagSet.add(tag);
+            }
+            index.updatePage(path, tagSet);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        content.close();
+    }
+
+    @Benchmark
+    public String indexedTags() throws Exception {
+        return writeTags(index.getTags(BenchmarkContent.ROOT));
+    }
+
+    @Benchmark
+    public String scannedTags() throws Exception {
+        Set<String> tags = new HashSet<>();
+        collectTags(resolver.getResource(BenchmarkContent.ROOT), tags);
+        return writeTags(tags);
+    }
+
+    @Benchmark
+    public int indexedTagFilter() {
+        TagFilter filter = TagFilter.parse(BenchmarkContent.tag(0) + "," + BenchmarkContent.tag(1),
+                BenchmarkContent.tag(7), BenchmarkContent.tag(14));
+        return index.select(filter).getPaths(BenchmarkContent.ROOT).size();
+    }
+
+    @Benchmark
+    public void updatePage() {
+        String path = content.getPagePaths().get(pageCount / 2);
+        Set<String> tags = new HashSet<>();
+        tags.add(BenchmarkContent.tag(0));
+        index.updatePage(path, tags);
+    }
+
+    private void collectTags(Resource parent, Set<String> tags) {
+        for (Resource child : parent.getChildren()) {
+            if ("jcr:content".equals(child.getName())) {
+                continue;
+            }
+            Resource pageContent = child.getChild("jcr:content");
+            String[] pageTags = pageContent == null ? null : pageContent.getValueMap().get("cq:tags", String[].class);
+            if (pageTags != null) {
+                for (String tag : pageTags) {
+                    tags.add(tag);
+                }
+            }
+            collectTags(child, tags);
+        }
+    }
+
+    private String writeTags(Set<String> tags) throws Exception {
+        StringWriter out = new StringWriter();
+        JsonStreamWriter json = new JsonStreamWriter(out);
+        json.beginObject().name("tags").beginArray();
+        for (String tag : tags) {
+            json.value(tag);
+        }
+        json.endArray().endObject();
+        return out.toString();
+    }
+
+    /**
+     * Creates an index configuration without startup rebuild, the benchmark fills the index itself.
+     */
+    private static TagFacetIndexConfig config(String root) {
+        return (TagFacetIndexConfig) Proxy.newProxyInstance(TagFacetIndexConfig.class.getClassLoader(),
+                new Class<?>[] {TagFacetIndexConfig.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "resource_paths":
+                        case "public_paths":
+                            return new String[] {root};
+                        case "rebuildOnStartup":
+                            return false;
+                        case "annotationType":
+                            return TagFacetIndexConfig.class;
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
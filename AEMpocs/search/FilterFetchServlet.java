@@ -1,116 +1,212 @@
-package com.adobe.practise.website.core.servlets;
-
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import javax.jcr.Session;
-import javax.servlet.Servlet;
-
-import org.apache.sling.api.SlingHttpServletRequest;
-import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.Reference;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.day.cq.search.PredicateGroup;
-import com.day.cq.search.Query;
-import com.day.cq.search.QueryBuilder;
-import com.day.cq.search.result.Hit;
-import com.day.cq.search.result.SearchResult;
-import com.day.cq.wcm.api.Page;
-import com.day.cq.wcm.api.PageManager;
-
-
-@Component(service = Servlet.class,
-			property = {
-					"sling.servlet.selector=tags",
-					"sling.servlet.extension=json",
-					"sling.servlet.resourceTypes=PractiseWebsite/components/searchbar",
-					"sling.servlet.methods=GET"
-			})
-public class FilterFetchServlet extends SlingSafeMethodsServlet{
-
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 1L;
-
-    @Reference
-    private QueryBuilder queryBuilder;
-
-    private static final Logger logger = LoggerFactory.getLogger(TagSearchServlet.class);
-
-    @Override
-    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
-        response.setContentType("application/json");
-        String path = request.getParameter("path");
-        if (path == null || path.isEmpty()) {
-            response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
-            response.getWriter().write("{\"error\": \"Path parameter is required\"}");
-            return;
-        }
-        String resultJson = getAllTags(request, path);
-        response.getWriter().write(resultJson);
-    }
-
-    private String getAllTags(SlingHttpServletRequest request, String path) {
-        Session session = null;
-        Set<String> allTags = new HashSet<>();
-        StringBuilder jsonResult = new StringBuilder();
-        
-        try {
-            session = request.getResourceResolver().adaptTo(Session.class);
-            if (session != null) {
-                Map<String, String> queryMap = new HashMap<>();
-                queryMap.put("path", path);
-                queryMap.put("type", "cq:Page");
-                queryMap.put("property", "jcr:content/cq:tags");
-                queryMap.put("property.operation", "exists");
-                queryMap.put("p.limit", "-1");
-                
-                Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
-                SearchResult searchResult = query.getResult();
-                
-                List<Hit> hits = searchResult.getHits();
-                for (Hit hit : hits) {
-                    String pagePath = hit.getPath();
-                    PageManager pageManager = request.getResourceResolver().adaptTo(PageManager.class);
-                    Page page = pageManager.getPage(pagePath);
-                    
-                    if (page != null) {
-                        String[] tags = page.getProperties().get("cq:tags", String[].class);
-                        if (tags != null) {
-                            for (String tag : tags) {
-                                allTags.add(tag);
-                            }
-                        }
-                    }
-                }
-
-                jsonResult.append("{\"tags\": [");
-                allTags.forEach(tag -> jsonResult.append("\"").append(tag).append("\","));
-                if (jsonResult.length() > 8 && jsonResult.charAt(jsonResult.length() - 1) == ',') {
-                    jsonResult.deleteCharAt(jsonResult.length() - 1);
-                }
-                jsonResult.append("]}");
-            } else {
-                logger.error("Session is null, unable to execute the query.");
-            }
-        } catch (Exception e) {
-            logger.error("Error executing query", e);
-        } finally {
-            if (session != null && session.isLive()) {
-                session.logout();
-            }
-        }
-
-        return jsonResult.toString();
-    }
-
-}
+package com.adobe.practise.website.core.servlets;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Session;
+import javax.servlet.Servlet;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.JsonStreamWriter;
+import com.adobe.practise.website.core.search.PagePaths;
+import com.adobe.practise.website.core.search.SearchPrewarmService;
+import com.adobe.practise.website.core.search.SearchRequestMetrics;
+import com.adobe.practise.website.core.search.SearchResultCache;
+import com.adobe.practise.website.core.search.SearchSingleFlight;
+import com.adobe.practise.website.core.search.TagFacetIndex;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+
+
+@Component(service = Servlet.class,
+			property = {
+					"sling.servlet.selector=tags",
+					"sling.servlet.extension=json",
+					"sling.servlet.resourceTypes=PractiseWebsite/components/searchbar",
+					"sling.servlet.methods=GET"
+			})
+public class FilterFetchServlet extends SlingSafeMethodsServlet{
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private TagFacetIndex tagFacetIndex;
+
+    @Reference
+    private SearchResultCache searchResultCache;
+
+    @Reference
+    private SearchRequestMetrics searchRequestMetrics;
+
+    @Reference
+    private SearchPrewarmService searchPrewarmService;
+
+    @Reference
+    private SearchSingleFlight searchSingleFlight;
+
+    private static final Logger logger = LoggerFactory.getLogger(FilterFetchServlet.class);
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        String path = request.getParameter("path");
+        if (path == null || path.isEmpty()) {
+            response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Path parameter is required\"}");
+            return;
+        }
+        response.setCharacterEncoding("UTF-8");
+        searchPrewarmService.record(request);
+
+        if (!searchResultCache.isEnabled() && !searchSingleFlight.isEnabled()) {
+            // Nothing shares the response, so it is written straight to the client
+            if (!fetchTags(request, path, response.getWriter())) {
+                writeError(response);
+            }
+            return;
+        }
+
+        String cacheKey = searchResultCache.createKey("tags", Collections.singletonMap("path", PagePaths.normalize(path)),
+                request.getResourceResolver());
+        if (searchResultCache.isEnabled()) {
+            String cached = searchResultCache.get(cacheKey);
+            if (cached != null) {
+                response.getWriter().write(cached);
+                return;
+            }
+        }
+
+        // Concurrent identical requests share one tag scan and its response
+        String body;
+        try {
+            body = searchSingleFlight.execute(cacheKey, () -> {
+                StringWriter out = new StringWriter();
+                if (!fetchTags(request, path, out)) {
+                    return null;
+                }
+                String rendered = out.toString();
+                searchResultCache.put(cacheKey, path, rendered);
+                return rendered;
+            });
+        } catch (Exception e) {
+            logger.error("Error fetching tags", e);
+            body = null;
+        }
+        if (body == null) {
+            writeError(response);
+            return;
+        }
+        response.getWriter().write(body);
+    }
+
+    /**
+     * Collects the tags below the path and renders them to the writer, or returns false without
+     * writing anything if they could not be fetched.
+     */
+    private boolean fetchTags(SlingHttpServletRequest request, String path, Writer out) throws IOException {
+        SearchRequestMetrics.Trace trace = searchRequestMetrics.start("tags");
+        Set<String> tags = tagFacetIndex.coversPublic(path) ? tagFacetIndex.getTags(path) : getAllTags(request, path, trace);
+        if (tags == null) {
+            return false;
+        }
+        trace.mark(SearchRequestMetrics.PHASE_RENDER);
+        writeTags(new JsonStreamWriter(out), tags);
+        trace.mark(SearchRequestMetrics.PHASE_WRITE);
+        trace.finish();
+        return true;
+    }
+
+    private void writeError(SlingHttpServletResponse response) throws IOException {
+        response.setStatus(SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        response.getWriter().write("{\"error\": \"Unable to fetch tags\"}");
+    }
+
+    /**
+     * Collects the tags of all pages below the path with a query, attaching the query to the trace
+     * while the session is still open.
+     */
+    private Set<String> getAllTags(SlingHttpServletRequest request, String path, SearchRequestMetrics.Trace trace) {
+        Session session = null;
+        Set<String> allTags = null;
+        
+        try {
+            session = request.getResourceResolver().adaptTo(Session.class);
+            if (session != null) {
+                Map<String, String> queryMap = new HashMap<>();
+                queryMap.put("path", path);
+                queryMap.put("type", "cq:Page");
+                queryMap.put("property", "jcr:content/cq:tags");
+                queryMap.put("property.operation", "exists");
+                queryMap.put("p.limit", "-1");
+                
+                Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
+                trace.mark(SearchRequestMetrics.PHASE_CREATE_QUERY);
+                SearchResult searchResult = query.getResult();
+                trace.mark(SearchRequestMetrics.PHASE_GET_RESULT);
+                trace.query(session, queryMap, searchResult);
+                
+                allTags = new HashSet<>();
+                List<Hit> hits = searchResult.getHits();
+                for (Hit hit : hits) {
+                    String pagePath = hit.getPath();
+                    PageManager pageManager = request.getResourceResolver().adaptTo(PageManager.class);
+                    Page page = pageManager.getPage(pagePath);
+                    
+                    if (page != null) {
+                        String[] tags = page.getProperties().get("cq:tags", String[].class);
+                        if (tags != null) {
+                            for (String tag : tags) {
+                                allTags.add(tag);
+                            }
+                        }
+                    }
+                }
+            } else {
+                logger.error("Session is null, unable to execute the query.");
+            }
+        } catch (Exception e) {
+            logger.error("Error executing query", e);
+            allTags = null;
+        } finally {
+            if (session != null && session.isLive()) {
+                session.logout();
+            }
+        }
+
+        return allTags;
+    }
+
+    private void writeTags(JsonStreamWriter json, Set<String> tags) throws IOException {
+        json.beginObject().name("tags").beginArray();
+        for (String tag : tags) {
+            json.value(tag);
+        }
+        json.endArray().endObject().flush();
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.adobe.practise.website.core.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * Declared set of fields rendered for each search hit.
+ *
+ * <p>All fields are read from the {@code ValueMap} of the page's {@code jcr:content} resource, using
+ * relative property paths for nested values such as {@code image/fileReference}. Rendering a hit
+ * therefore costs one child lookup regardless of how many fields are declared.</p>
+ */
+public final class HitProjection {
+
+    private final List<Field> fields;
+
+    private HitProjection(List<Field> fields) {
+        this.fields = Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * Creates the projection of the default {@code title} and {@code thumbnail} fields plus the given
+     * extra fields, each declared as {@code name=relative/property/path}.
+     */
+    public static HitProjection create(String... extraFields) {
+        List<Field> fields = new ArrayList<>();
+        fields.add(new Field("title", "jcr:title"));
+        fields.add(new Field("thumbnail", "image/fileReference"));
+        for (String extraField : extraFields) {
+            String name = StringUtils.trimToEmpty(StringUtils.substringBefore(extraField, "="));
+            String property = StringUtils.trimToEmpty(StringUtils.substringAfter(extraField, "="));
+            if (!name.isEmpty() && !property.isEmpty() && !property.startsWith("/") && !property.contains("..")) {
+                fields.add(new Field(name, property));
+            }
+        }
+        return new HitProjection(fields);
+    }
+
+    /**
+     * Writes the path and the declared fields of the page as a JSON object, using empty strings for
+     * missing values.
+     */
+    public void write(JsonStreamWriter json, Resource page) throws IOException {
+        Resource content = page.getChild(PagePaths.JCR_CONTENT);
+        ValueMap properties = content == null ? ValueMap.EMPTY : content.getValueMap();
+        json.beginObject().property("path", page.getPath());
+        for (Field field : fields) {
+            json.property(field.name, properties.get(field.property, ""));
+        }
+        json.endObject();
+    }
+
+    private static final class Field {
+
+        private final String name;
+        private final String property;
+
+        private Field(String name, String property) {
+            this.name = name;
+            this.property = property;
+        }
+    }
+}
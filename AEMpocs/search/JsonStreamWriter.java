@@ -0,0 +1,178 @@
+package com.adobe.practise.website.core.search;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Minimal streaming JSON writer used by the searchbar servlets to write responses straight to the
+ * client without building an intermediate object tree.
+ *
+ * <p>The writer only tracks where separators are needed; callers are responsible for producing a
+ * well formed sequence of calls.</p>
+ */
+public final class JsonStreamWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+
+    /** One entry per open object or array, true until the first member has been written. */
+    private final Deque<Boolean> first = new ArrayDeque<>();
+
+    private boolean afterName;
+
+    public JsonStreamWriter(Writer out) {
+        this.out = out;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        beforeValue();
+        out.write('{');
+        first.push(Boolean.TRUE);
+        return this;
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        first.pop();
+        out.write('}');
+        return this;
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        beforeValue();
+        out.write('[');
+        first.push(Boolean.TRUE);
+        return this;
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        first.pop();
+        out.write(']');
+        return this;
+    }
+
+    /**
+     * Writes the name of the next object member.
+     */
+    public JsonStreamWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonStreamWriter nullValue() throws IOException {
+        beforeValue();
+        out.write("null");
+        return this;
+    }
+
+    /**
+     * Shortcut for a string member.
+     */
+    public JsonStreamWriter property(String name, String value) throws IOException {
+        return name(name).value(value);
+    }
+
+    /**
+     * Shortcut for a numeric member.
+     */
+    public JsonStreamWriter property(String name, long value) throws IOException {
+        return name(name).value(value);
+    }
+
+    /**
+     * Shortcut for a boolean member.
+     */
+    public JsonStreamWriter property(String name, boolean value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+
+    private void separate() throws IOException {
+        if (first.isEmpty()) {
+            return;
+        }
+        if (first.peek()) {
+            first.pop();
+            first.push(Boolean.FALSE);
+        } else {
+            out.write(',');
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.write(value, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write("\\u");
+                    out.write(HEX[(c >> 12) & 0xF]);
+                    out.write(HEX[(c >> 8) & 0xF]);
+                    out.write(HEX[(c >> 4) & 0xF]);
+                    out.write(HEX[c & 0xF]);
+                    break;
+            }
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+}
@@ -0,0 +1,367 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Compressed set of non-negative int page IDs in the style of a Roaring bitmap.
+ *
+ * <p>IDs are split by their upper 16 bits into chunks. A chunk with few IDs stores the lower 16
+ * bits as a sorted {@code char} array, a dense chunk as a 65536 bit {@code long} array, so that
+ * both sparse and dense tag postings stay small and set operations run chunk by chunk.</p>
+ *
+ * <p>Instances are not thread safe; the tag bitmap index copies them under its lock.</p>
+ */
+public final class PageIdBitmap {
+
+    /** Arrays are converted to bitmaps above this size, where the bitmap becomes the smaller one. */
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys = new char[0];
+    private Object[] chunks = new Object[0];
+    private int[] sizes = new int[0];
+
+    public PageIdBitmap() {
+    }
+
+    private PageIdBitmap(char[] keys, Object[] chunks, int[] sizes) {
+        this.keys = keys;
+        this.chunks = chunks;
+        this.sizes = sizes;
+    }
+
+    public void add(int id) {
+        char key = (char) (id >>> 16);
+        char low = (char) id;
+        int index = Arrays.binarySearch(keys, key);
+        if (index < 0) {
+            index = -index - 1;
+            keys = insert(keys, index, key);
+            chunks = insert(chunks, index, new char[] {low});
+            sizes = insert(sizes, index, 1);
+            return;
+        }
+        Object chunk = chunks[index];
+        if (chunk instanceof long[]) {
+            long[] bits = (long[]) chunk;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0) {
+                bits[low >>> 6] |= mask;
+                sizes[index]++;
+            }
+            return;
+        }
+        char[] values = (char[]) chunk;
+        int size = sizes[index];
+        int position = Arrays.binarySearch(values, 0, size, low);
+        if (position >= 0) {
+            return;
+        }
+        position = -position - 1;
+        if (size == ARRAY_MAX) {
+            long[] bits = toBits(values, size);
+            bits[low >>> 6] |= 1L << low;
+            chunks[index] = bits;
+        } else {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, size * 2)));
+                chunks[index] = values;
+            }
+            System.arraycopy(values, position, values, position + 1, size - position);
+            values[position] = low;
+        }
+        sizes[index] = size + 1;
+    }
+
+    public void remove(int id) {
+        int index = Arrays.binarySearch(keys, (char) (id >>> 16));
+        if (index < 0) {
+            return;
+        }
+        char low = (char) id;
+        Object chunk = chunks[index];
+        if (chunk instanceof long[]) {
+            long[] bits = (long[]) chunk;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0) {
+                return;
+            }
+            bits[low >>> 6] &= ~mask;
+            sizes[index]--;
+            if (sizes[index] <= ARRAY_MAX) {
+                chunks[index] = toValues(bits, sizes[index]);
+            }
+        } else {
+            char[] values = (char[]) chunk;
+            int size = sizes[index];
+            int position = Arrays.binarySearch(values, 0, size, low);
+            if (position < 0) {
+                return;
+            }
+            System.arraycopy(values, position + 1, values, position, size - position - 1);
+            sizes[index] = size - 1;
+        }
+        if (sizes[index] == 0) {
+            keys = delete(keys, index);
+            chunks = delete(chunks, index);
+            sizes = delete(sizes, index);
+        }
+    }
+
+    public boolean contains(int id) {
+        int index = Arrays.binarySearch(keys, (char) (id >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        char low = (char) id;
+        Object chunk = chunks[index];
+        if (chunk instanceof long[]) {
+            return (((long[]) chunk)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) chunk, 0, sizes[index], low) >= 0;
+    }
+
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int size : sizes) {
+            cardinality += size;
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    public PageIdBitmap copy() {
+        Object[] copied = new Object[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            copied[i] = chunks[i] instanceof long[] ? ((long[]) chunks[i]).clone() : Arrays.copyOf((char[]) chunks[i], sizes[i]);
+        }
+        return new PageIdBitmap(keys.clone(), copied, sizes.clone());
+    }
+
+    /**
+     * Returns the IDs contained in both bitmaps.
+     */
+    public static PageIdBitmap and(PageIdBitmap a, PageIdBitmap b) {
+        return combine(a, b, Operation.AND);
+    }
+
+    /**
+     * Returns the IDs contained in either bitmap.
+     */
+    public static PageIdBitmap or(PageIdBitmap a, PageIdBitmap b) {
+        return combine(a, b, Operation.OR);
+    }
+
+    /**
+     * Returns the IDs of the first bitmap that are not in the second one.
+     */
+    public static PageIdBitmap andNot(PageIdBitmap a, PageIdBitmap b) {
+        return combine(a, b, Operation.AND_NOT);
+    }
+
+    /**
+     * Iterates the IDs in ascending order.
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int chunk;
+            private int position = -1;
+
+            @Override
+            public boolean hasNext() {
+                return advance(false) >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                int id = advance(true);
+                if (id < 0) {
+                    throw new NoSuchElementException();
+                }
+                return id;
+            }
+
+            private int advance(boolean consume) {
+                int c = chunk;
+                int p = position;
+                while (c < keys.length) {
+                    int low = next(c, p);
+                    if (low >= 0) {
+                        if (consume) {
+                            chunk = c;
+                            position = low;
+                        }
+                        return keys[c] << 16 | low;
+                    }
+                    c++;
+                    p = -1;
+                }
+                if (consume) {
+                    chunk = c;
+                }
+                return -1;
+            }
+
+            /**
+             * Returns the lowest value of the chunk greater than the given one, or -1.
+             */
+            private int next(int c, int after) {
+                Object value = chunks[c];
+                if (value instanceof long[]) {
+                    long[] bits = (long[]) value;
+                    int from = after + 1;
+                    if (from >= 1 << 16) {
+                        return -1;
+                    }
+                    int word = from >>> 6;
+                    long current = bits[word] & (-1L << from);
+                    while (true) {
+                        if (current != 0) {
+                            return word * 64 + Long.numberOfTrailingZeros(current);
+                        }
+                        if (++word == BITMAP_WORDS) {
+                            return -1;
+                        }
+                        current = bits[word];
+                    }
+                }
+                char[] values = (char[]) value;
+                int index = Arrays.binarySearch(values, 0, sizes[c], (char) Math.min(after + 1, 0xFFFF));
+                index = index < 0 ? -index - 1 : index;
+                return index < sizes[c] && values[index] > after ? values[index] : -1;
+            }
+        };
+    }
+
+    private enum Operation {
+        AND, OR, AND_NOT
+    }
+
+    private static PageIdBitmap combine(PageIdBitmap a, PageIdBitmap b, Operation operation) {
+        int capacity = operation == Operation.OR ? a.keys.length + b.keys.length : a.keys.length;
+        char[] keys = new char[capacity];
+        Object[] chunks = new Object[capacity];
+        int[] sizes = new int[capacity];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.keys.length || j < b.keys.length) {
+            int keyA = i < a.keys.length ? a.keys[i] : Integer.MAX_VALUE;
+            int keyB = j < b.keys.length ? b.keys[j] : Integer.MAX_VALUE;
+            long[] bits;
+            int key;
+            if (keyA == keyB) {
+                bits = a.bitsOf(i);
+                long[] other = b.bitsOf(j);
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    bits[w] = operation == Operation.AND ? bits[w] & other[w]
+                            : operation == Operation.OR ? bits[w] | other[w] : bits[w] & ~other[w];
+                }
+                key = keyA;
+                i++;
+                j++;
+            } else if (keyA < keyB) {
+                key = keyA;
+                bits = operation == Operation.AND ? null : a.bitsOf(i);
+                i++;
+            } else {
+                key = keyB;
+                bits = operation == Operation.OR ? b.bitsOf(j) : null;
+                j++;
+            }
+            if (bits == null) {
+                continue;
+            }
+            int size = 0;
+            for (long word : bits) {
+                size += Long.bitCount(word);
+            }
+            if (size > 0) {
+                keys[count] = (char) key;
+                chunks[count] = size > ARRAY_MAX ? bits : toValues(bits, size);
+                sizes[count] = size;
+                count++;
+            }
+        }
+        return new PageIdBitmap(Arrays.copyOf(keys, count), Arrays.copyOf(chunks, count), Arrays.copyOf(sizes, count));
+    }
+
+    /**
+     * Returns the chunk as a new bit array.
+     */
+    private long[] bitsOf(int index) {
+        Object chunk = chunks[index];
+        return chunk instanceof long[] ? ((long[]) chunk).clone() : toBits((char[]) chunk, sizes[index]);
+    }
+
+    private static long[] toBits(char[] values, int size) {
+        long[] bits = new long[BITMAP_WORDS];
+        for (int i = 0; i < size; i++) {
+            bits[values[i] >>> 6] |= 1L << values[i];
+        }
+        return bits;
+    }
+
+    private static char[] toValues(long[] bits, int size) {
+        char[] values = new char[size];
+        int position = 0;
+        for (int word = 0; word < BITMAP_WORDS; word++) {
+            long current = bits[word];
+            while (current != 0) {
+                values[position++] = (char) (word * 64 + Long.numberOfTrailingZeros(current));
+                current &= current - 1;
+            }
+        }
+        return values;
+    }
+
+    private static char[] insert(char[] array, int index, char value) {
+        char[] result = new char[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static Object[] insert(Object[] array, int index, Object value) {
+        Object[] result = new Object[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static char[] delete(char[] array, int index) {
+        char[] result = new char[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static int[] delete(int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static Object[] delete(Object[] array, int index) {
+        Object[] result = new Object[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+}
@@ -0,0 +1,60 @@
+package com.adobe.practise.website.core.search;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Path helpers shared by the in-memory search indexes.
+ */
+public final class PagePaths {
+
+    public static final String JCR_CONTENT = "jcr:content";
+
+    private static final String JCR_CONTENT_SEGMENT = "/" + JCR_CONTENT;
+
+    private PagePaths() {
+    }
+
+    /**
+     * Returns the page path a changed resource belongs to, i.e. the path with everything from
+     * {@code /jcr:content} onwards stripped.
+     */
+    public static String toPagePath(String resourcePath) {
+        int index = resourcePath.indexOf(JCR_CONTENT_SEGMENT);
+        if (index < 0) {
+            return normalize(resourcePath);
+        }
+        return resourcePath.substring(0, index);
+    }
+
+    /**
+     * Returns true if the path points into the {@code jcr:content} subtree of a page.
+     */
+    public static boolean isContentPath(String resourcePath) {
+        return resourcePath.contains(JCR_CONTENT_SEGMENT + "/") || resourcePath.endsWith(JCR_CONTENT_SEGMENT);
+    }
+
+    /**
+     * Removes a trailing slash, keeping the repository root as is.
+     */
+    public static String normalize(String path) {
+        if (path != null && path.length() > 1 && path.endsWith("/")) {
+            return StringUtils.removeEnd(path, "/");
+        }
+        return path;
+    }
+
+    /**
+     * Returns true if the path is the root itself or one of its descendants.
+     */
+    public static boolean isSameOrDescendant(String root, String path) {
+        return path.equals(root) || path.startsWith(root + "/");
+    }
+
+    /**
+     * Returns the upper bound to use with {@code subMap(path + "/", ...)} when scanning a sorted
+     * map for all descendants of a path.
+     */
+    public static String descendantUpperBound(String path) {
+        return path + "/\uFFFF";
+    }
+}
@@ -0,0 +1,153 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded estimate of the most frequent recent searchbar requests.
+ *
+ * <p>Frequencies are kept in a count-min sketch with conservative updates, so memory does not grow
+ * with the number of distinct requests. Alongside it a small candidate table remembers the requests
+ * with the highest estimates. Once as many requests as ten times the sketch width have been
+ * recorded, all counts are halved, so requests that stopped being popular fade out. The candidate
+ * table is only scanned when a request may displace its weakest entry.</p>
+ */
+public final class QueryFrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[][] counters;
+    private final int mask;
+    private final int capacity;
+    private final int sampleSize;
+    private final Map<String, Integer> candidates = new HashMap<>();
+    private int recorded;
+    private int weakestCount;
+
+    /**
+     * Creates a sketch with at least the given width per row that tracks up to {@code capacity} top requests.
+     */
+    public QueryFrequencySketch(int width, int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.counters = new int[DEPTH][size];
+        this.mask = size - 1;
+        this.capacity = Math.max(1, capacity);
+        this.sampleSize = size * 10;
+    }
+
+    /**
+     * Counts one occurrence of the request.
+     */
+    public synchronized void record(String request) {
+        int hash = request.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters[row][index(hash, row)]);
+        }
+        // Conservative update: only the counters that hold the minimum are raised
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(hash, row);
+            if (counters[row][index] == estimate) {
+                counters[row][index]++;
+            }
+        }
+        estimate++;
+        offer(request, estimate);
+        if (++recorded >= sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of the request.
+     */
+    public synchronized int estimate(String request) {
+        int hash = request.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters[row][index(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns up to {@code limit} of the most frequent requests, most frequent first.
+     */
+    public synchronized List<String> getTop(int limit) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(candidates.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        List<String> top = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            if (top.size() == limit) {
+                break;
+            }
+            top.add(entry.getKey());
+        }
+        return top;
+    }
+
+    public synchronized void clear() {
+        for (int[] row : counters) {
+            Arrays.fill(row, 0);
+        }
+        candidates.clear();
+        weakestCount = 0;
+        recorded = 0;
+    }
+
+    private void offer(String request, int estimate) {
+        if (candidates.containsKey(request) || candidates.size() < capacity) {
+            candidates.put(request, estimate);
+            return;
+        }
+        // Counts in the table only grow between agings, so a request not above the last known
+        // weakest count cannot displace any candidate and the table is not scanned
+        if (estimate <= weakestCount) {
+            return;
+        }
+        String weakest = null;
+        int weakestValue = Integer.MAX_VALUE;
+        int secondValue = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> entry : candidates.entrySet()) {
+            int value = entry.getValue();
+            if (value < weakestValue) {
+                secondValue = weakestValue;
+                weakest = entry.getKey();
+                weakestValue = value;
+            } else if (value < secondValue) {
+                secondValue = value;
+            }
+        }
+        if (estimate > weakestValue) {
+            candidates.remove(weakest);
+            candidates.put(request, estimate);
+            weakestCount = Math.min(secondValue, estimate);
+        } else {
+            weakestCount = weakestValue;
+        }
+    }
+
+    private void age() {
+        for (int[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        candidates.replaceAll((request, count) -> count >>> 1);
+        candidates.values().removeIf(count -> count == 0);
+        weakestCount = 0;
+        recorded = 0;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x5BD1E995;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 13;
+        return h & mask;
+    }
+}
@@ -0,0 +1,71 @@
+package com.adobe.practise.website.core.servlets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque keyset pagination token for the search servlet.
+ *
+ * <p>Hits are ordered by {@code jcr:created} and then by path; the cursor records the creation time
+ * and path of the last hit returned and how many hits sharing that time were returned so far. The next
+ * page starts at the cursor time and skips those hits by offset, so Oak only has to skip within a single
+ * group of pages created at the same instant and the token keeps a fixed size.</p>
+ */
+public final class SearchCursor {
+
+    private static final String VERSION = "v2";
+    private static final String SEPARATOR = "\n";
+
+    private final long lastCreated;
+    private final int tieOffset;
+    private final String lastPath;
+
+    public SearchCursor(long lastCreated, int tieOffset, String lastPath) {
+        this.lastCreated = lastCreated;
+        this.tieOffset = tieOffset;
+        this.lastPath = lastPath;
+    }
+
+    public long getLastCreated() {
+        return lastCreated;
+    }
+
+    /**
+     * Returns the number of hits created at {@link #getLastCreated()} that were already returned.
+     */
+    public int getTieOffset() {
+        return tieOffset;
+    }
+
+    public String getLastPath() {
+        return lastPath;
+    }
+
+    /**
+     * Encodes the cursor as a URL safe token.
+     */
+    public String encode() {
+        String value = VERSION + SEPARATOR + lastCreated + SEPARATOR + tieOffset + SEPARATOR + lastPath;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a token created by {@link #encode()}, returning null if it is not a valid cursor.
+     */
+    public static SearchCursor decode(String token) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = value.split(SEPARATOR);
+            if (parts.length != 4 || !VERSION.equals(parts[0])) {
+                return null;
+            }
+            int tieOffset = Integer.parseInt(parts[2]);
+            if (tieOffset < 1 || !parts[3].startsWith("/")) {
+                return null;
+            }
+            return new SearchCursor(Long.parseLong(parts[1]), tieOffset, parts[3]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
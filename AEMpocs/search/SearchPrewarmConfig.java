@@ -0,0 +1,44 @@
+package com.adobe.practise.website.core.search.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Searchbar Prewarm Configuration")
+public @interface SearchPrewarmConfig {
+
+    @AttributeDefinition(name = "Enable", description = "Replay frequent searchbar requests after startup and replication")
+    boolean enable() default true;
+
+    @AttributeDefinition(name = "Top Requests", description = "Number of most frequent recent requests replayed per prewarm")
+    int topRequests() default 20;
+
+    @AttributeDefinition(name = "Sketch Width",
+            description = "Counters per row of the request frequency sketch, more counters give more precise frequencies")
+    int sketchWidth() default 4096;
+
+    @AttributeDefinition(name = "Sample Rate",
+            description = "Only one in this many requests is recorded, which keeps recording off the request path under load; 1 records all")
+    int sampleRate() default 8;
+
+    @AttributeDefinition(name = "Prewarm Requests",
+            description = "Requests replayed on every prewarm in addition to the recorded ones, e.g. the tag listing of each searchbar root: "
+                    + "/content/practise/en/jcr:content/root/searchbar.tags.json?path=/content/practise/en")
+    String[] prewarmRequests() default {};
+
+    @AttributeDefinition(name = "Startup Delay (seconds)", description = "Time after activation before the first prewarm")
+    int startupDelaySeconds() default 120;
+
+    @AttributeDefinition(name = "Replication Delay (seconds)",
+            description = "Time after a replication event before prewarming, replications within this time share one prewarm")
+    int replicationDelaySeconds() default 30;
+
+    @AttributeDefinition(name = "Threads", description = "Number of low priority threads replaying requests")
+    int threads() default 1;
+
+    @AttributeDefinition(name = "Storage Path",
+            description = "Node where the most frequent requests are saved, so that they can be replayed after a restart")
+    String storagePath() default "/var/practise/search/prewarm";
+
+    @AttributeDefinition(name = "Save Interval (seconds)", description = "Interval at which the most frequent requests are saved")
+    long saveIntervalSeconds() default 900;
+}
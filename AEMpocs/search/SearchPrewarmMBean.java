@@ -0,0 +1,17 @@
+package com.adobe.practise.website.core.search;
+
+/**
+ * JMX view of the searchbar prewarm service.
+ */
+public interface SearchPrewarmMBean {
+
+    String[] getTopRequests();
+
+    long getPrewarmedRequests();
+
+    long getFailedRequests();
+
+    long getLastPrewarmTime();
+
+    void prewarm();
+}
@@ -0,0 +1,330 @@
+package com.adobe.practise.website.core.search;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.config.SearchPrewarmConfig;
+import com.day.cq.contentsync.handler.util.RequestResponseFactory;
+import com.day.cq.replication.ReplicationAction;
+
+/**
+ * Replays the most frequent recent searchbar requests in the background after startup and after
+ * replication, so that the first visitors do not pay for cold Oak and index caches.
+ *
+ * <p>The search and tag servlets record every request in a {@link QueryFrequencySketch}. The top
+ * requests are saved to the repository periodically, so that they survive a restart. A prewarm
+ * replays them, together with the configured requests, as the anonymous user through the Sling
+ * request processor on a pool of low priority threads, which also refills the result cache.</p>
+ */
+@Component(service = {SearchPrewarmService.class, SearchPrewarmMBean.class, EventHandler.class},
+        immediate = true,
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=SearchPrewarm",
+                EventConstants.EVENT_TOPIC + "=" + ReplicationAction.EVENT_TOPIC
+        }
+)
+@Designate(ocd = SearchPrewarmConfig.class)
+public class SearchPrewarmService implements SearchPrewarmMBean, EventHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchPrewarmService.class);
+
+    /**
+     * Request attribute marking replayed requests, which are not recorded again.
+     */
+    public static final String PREWARM_ATTRIBUTE = SearchPrewarmService.class.getName() + ".prewarm";
+
+    private static final String REQUESTS_PROPERTY = "requests";
+    private static final String SAVE_JOB_NAME = "SearchPrewarmSave";
+    private static final int MAX_REQUEST_LENGTH = 2048;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private SlingRequestProcessor requestProcessor;
+
+    @Reference
+    private RequestResponseFactory requestResponseFactory;
+
+    @Reference
+    private Scheduler scheduler;
+
+    private final AtomicBoolean replicationPrewarmPending = new AtomicBoolean();
+    private final AtomicLong prewarmedRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong lastPrewarmTime = new AtomicLong();
+
+    private volatile boolean enabled;
+    private volatile int topRequests;
+    private volatile int replicationDelaySeconds;
+    private volatile String storagePath;
+    private volatile String[] prewarmRequests;
+    private volatile QueryFrequencySketch sketch;
+    private volatile int sampleRate = 1;
+    private ThreadPoolExecutor executor;
+
+    @Activate
+    @Modified
+    protected synchronized void activate(SearchPrewarmConfig config) {
+        shutdown();
+        this.enabled = config.enable();
+        this.topRequests = Math.max(0, config.topRequests());
+        this.replicationDelaySeconds = Math.max(0, config.replicationDelaySeconds());
+        this.storagePath = config.storagePath();
+        this.prewarmRequests = config.prewarmRequests();
+        this.sampleRate = Math.max(1, config.sampleRate());
+        this.sketch = new QueryFrequencySketch(config.sketchWidth(), Math.max(1, topRequests) * 2);
+        if (!enabled) {
+            LOG.info("Search prewarm disabled");
+            return;
+        }
+        int threads = Math.max(1, config.threads());
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new PrewarmThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        loadRequests();
+        scheduler.schedule((Runnable) this::prewarm, scheduler.AT(new Date(System.currentTimeMillis()
+                + config.startupDelaySeconds() * 1000L)).name("SearchPrewarmStartup").canRunConcurrently(false));
+        scheduler.schedule((Runnable) this::saveRequests, scheduler.PERIODIC(Math.max(60, config.saveIntervalSeconds()))
+                .name(SAVE_JOB_NAME).canRunConcurrently(false));
+        LOG.info("Search prewarm activated, top requests: {}, threads: {}", topRequests, threads);
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        if (enabled) {
+            saveRequests();
+        }
+        shutdown();
+    }
+
+    /**
+     * Records a sample of the searchbar requests for later prewarming. Frequent requests are still
+     * found from one in {@code sampleRate} requests, while the others return before touching the
+     * shared sketch. Replayed requests are ignored.
+     */
+    public void record(SlingHttpServletRequest request) {
+        if (!enabled || request.getAttribute(PREWARM_ATTRIBUTE) != null) {
+            return;
+        }
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        String query = request.getQueryString();
+        String uri = StringUtils.isEmpty(query) ? request.getRequestURI() : request.getRequestURI() + "?" + query;
+        if (uri.length() <= MAX_REQUEST_LENGTH) {
+            sketch.record(uri);
+        }
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        if (!enabled || !replicationPrewarmPending.compareAndSet(false, true)) {
+            return;
+        }
+        // Replications arriving until the prewarm starts share it
+        scheduler.schedule((Runnable) () -> {
+            replicationPrewarmPending.set(false);
+            prewarm();
+        }, scheduler.AT(new Date(System.currentTimeMillis() + replicationDelaySeconds * 1000L))
+                .name("SearchPrewarmReplication").canRunConcurrently(false));
+    }
+
+    /**
+     * Queues the configured and the most frequent recorded requests for replay, unless the previous
+     * prewarm is still running.
+     */
+    @Override
+    public synchronized void prewarm() {
+        if (!enabled || executor == null) {
+            return;
+        }
+        if (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) {
+            LOG.debug("Previous search prewarm still running, skipping");
+            return;
+        }
+        Set<String> requests = new LinkedHashSet<>();
+        Collections.addAll(requests, prewarmRequests);
+        requests.addAll(sketch.getTop(topRequests));
+        for (String request : requests) {
+            if (StringUtils.isNotBlank(request)) {
+                executor.execute(() -> replay(request.trim()));
+            }
+        }
+        lastPrewarmTime.set(System.currentTimeMillis());
+        LOG.info("Search prewarm queued {} requests", requests.size());
+    }
+
+    @Override
+    public String[] getTopRequests() {
+        QueryFrequencySketch current = sketch;
+        List<String> top = current.getTop(topRequests);
+        String[] result = new String[top.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = current.estimate(top.get(i)) + " " + top.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public long getPrewarmedRequests() {
+        return prewarmedRequests.get();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    @Override
+    public long getLastPrewarmTime() {
+        return lastPrewarmTime.get();
+    }
+
+    /**
+     * Runs the request through the Sling engine as the anonymous user and discards the response.
+     */
+    private void replay(String uri) {
+        int separator = uri.indexOf('?');
+        String path = separator < 0 ? uri : uri.substring(0, separator);
+        Map<String, Object> parameters = separator < 0 ? Collections.<String, Object>emptyMap() : parseQuery(uri.substring(separator + 1));
+        try (ResourceResolver resolver = resolverFactory.getResourceResolver(null)) {
+            HttpServletRequest request = requestResponseFactory.createRequest("GET", path, parameters);
+            request.setAttribute(PREWARM_ATTRIBUTE, Boolean.TRUE);
+            HttpServletResponse response = requestResponseFactory.createResponse(NullOutputStream.NULL_OUTPUT_STREAM);
+            requestProcessor.processRequest(request, response, resolver);
+            if (response.getStatus() >= HttpServletResponse.SC_BAD_REQUEST) {
+                failedRequests.incrementAndGet();
+                LOG.debug("Prewarm request {} returned status {}", uri, response.getStatus());
+            } else {
+                prewarmedRequests.incrementAndGet();
+            }
+        } catch (Exception e) {
+            failedRequests.incrementAndGet();
+            LOG.warn("Prewarm request {} failed: {}", uri, e.getMessage());
+        }
+    }
+
+    private Map<String, Object> parseQuery(String query) {
+        Map<String, Object> parameters = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            try {
+                parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8.name()),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8.name()));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                LOG.debug("Skipping malformed parameter {} of prewarm request", pair);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Seeds the sketch with the requests saved before the last shutdown, most frequent first.
+     */
+    private void loadRequests() {
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            Resource storage = resolver.getResource(storagePath);
+            String[] saved = storage == null ? null : storage.getValueMap().get(REQUESTS_PROPERTY, String[].class);
+            if (saved == null) {
+                return;
+            }
+            for (int i = 0; i < saved.length; i++) {
+                // Earlier entries were more frequent, give them a higher starting count
+                for (int count = saved.length - i; count > 0; count--) {
+                    sketch.record(saved[i]);
+                }
+            }
+            LOG.debug("Loaded {} saved prewarm requests", saved.length);
+        } catch (LoginException e) {
+            LOG.error("Error obtaining service ResourceResolver, saved prewarm requests not loaded: ", e);
+        }
+    }
+
+    private void saveRequests() {
+        List<String> top = sketch.getTop(topRequests);
+        if (top.isEmpty()) {
+            return;
+        }
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            Resource storage = ResourceUtil.getOrCreateResource(resolver, storagePath, "nt:unstructured", "sling:Folder", false);
+            ModifiableValueMap properties = storage.adaptTo(ModifiableValueMap.class);
+            properties.put(REQUESTS_PROPERTY, top.toArray(new String[0]));
+            resolver.commit();
+        } catch (Exception e) {
+            LOG.error("Error saving prewarm requests to {}: ", storagePath, e);
+        }
+    }
+
+    private void shutdown() {
+        scheduler.unschedule(SAVE_JOB_NAME);
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private ResourceResolver getServiceResourceResolver() throws LoginException {
+        Map<String, Object> authInfo = new HashMap<>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
+        return resolverFactory.getServiceResourceResolver(authInfo);
+    }
+
+    private static final class PrewarmThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "search-prewarm-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
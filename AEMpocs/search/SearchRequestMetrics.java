@@ -0,0 +1,221 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.metrics.Timer;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.config.SearchRequestMetricsConfig;
+import com.day.cq.search.result.SearchResult;
+
+/**
+ * Records how long the phases of a searchbar request take and keeps the most recent slow requests.
+ *
+ * <p>Each phase is published as the Sling timer {@code practise.search.<endpoint>.<phase>}, the
+ * whole request as {@code practise.search.<endpoint>.total}. Requests above the configured
+ * threshold are kept in a bounded buffer together with their predicates and query plan.</p>
+ */
+@Component(service = {SearchRequestMetrics.class, SearchRequestMetricsMBean.class},
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=SearchRequestMetrics"
+        }
+)
+@Designate(ocd = SearchRequestMetricsConfig.class)
+public class SearchRequestMetrics implements SearchRequestMetricsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchRequestMetrics.class);
+
+    public static final String PHASE_CREATE_QUERY = "createQuery";
+    public static final String PHASE_GET_RESULT = "getResult";
+    public static final String PHASE_RENDER = "render";
+    public static final String PHASE_WRITE = "write";
+
+    private static final String PREFIX = "practise.search.";
+
+    @Reference
+    private MetricsService metricsService;
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Deque<String> slowQueries = new ArrayDeque<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong slowRequests = new AtomicLong();
+
+    private volatile long slowQueryThresholdMs;
+    private volatile int slowQueryCapacity;
+    private volatile boolean explainSlowQueries;
+
+    @Activate
+    @Modified
+    protected void activate(SearchRequestMetricsConfig config) {
+        this.slowQueryThresholdMs = config.slowQueryThresholdMs();
+        this.slowQueryCapacity = Math.max(1, config.slowQueryCapacity());
+        this.explainSlowQueries = config.explainSlowQueries();
+        synchronized (slowQueries) {
+            while (slowQueries.size() > slowQueryCapacity) {
+                slowQueries.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Starts timing a request of the given endpoint, e.g. {@code search} or {@code tags}.
+     */
+    public Trace start(String endpoint) {
+        return new Trace(endpoint);
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getSlowRequests() {
+        return slowRequests.get();
+    }
+
+    @Override
+    public long getSlowQueryThresholdMs() {
+        return slowQueryThresholdMs;
+    }
+
+    @Override
+    public String[] getSlowQueries() {
+        synchronized (slowQueries) {
+            return slowQueries.toArray(new String[0]);
+        }
+    }
+
+    @Override
+    public void clearSlowQueries() {
+        synchronized (slowQueries) {
+            slowQueries.clear();
+        }
+    }
+
+    private Timer getTimer(String endpoint, String phase) {
+        return timers.computeIfAbsent(PREFIX + endpoint + "." + phase, metricsService::timer);
+    }
+
+    private void record(Trace trace) {
+        long totalNanos = System.nanoTime() - trace.start;
+        requests.incrementAndGet();
+        getTimer(trace.endpoint, "total").update(totalNanos, TimeUnit.NANOSECONDS);
+        for (Map.Entry<String, Long> phase : trace.phases.entrySet()) {
+            getTimer(trace.endpoint, phase.getKey()).update(phase.getValue(), TimeUnit.NANOSECONDS);
+        }
+
+        long totalMs = TimeUnit.NANOSECONDS.toMillis(totalNanos);
+        if (totalMs < slowQueryThresholdMs) {
+            return;
+        }
+        slowRequests.incrementAndGet();
+        StringBuilder entry = new StringBuilder()
+                .append(ISO8601.format(Calendar.getInstance())).append(' ')
+                .append(trace.endpoint).append(' ').append(totalMs).append("ms");
+        for (Map.Entry<String, Long> phase : trace.phases.entrySet()) {
+            entry.append(' ').append(phase.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMillis(phase.getValue())).append("ms");
+        }
+        entry.append(" predicates=").append(trace.predicates == null ? "{}" : new TreeMap<>(trace.predicates));
+        if (trace.statement != null) {
+            entry.append(" statement=").append(trace.statement);
+            String plan = trace.plan;
+            if (plan == null && explainSlowQueries && trace.session != null && trace.session.isLive()) {
+                plan = explain(trace.session, trace.statement);
+            }
+            if (plan != null) {
+                entry.append(" plan=").append(plan);
+            }
+        }
+        LOG.debug("Slow searchbar request: {}", entry);
+        synchronized (slowQueries) {
+            slowQueries.addFirst(entry.toString());
+            while (slowQueries.size() > slowQueryCapacity) {
+                slowQueries.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Returns the Oak plan of a QueryBuilder statement, which is XPath unless it starts with a select.
+     */
+    @SuppressWarnings("deprecation")
+    private String explain(Session session, String statement) {
+        try {
+            String language = statement.trim().toLowerCase().startsWith("select") ? Query.JCR_SQL2 : Query.XPATH;
+            Query query = session.getWorkspace().getQueryManager().createQuery("explain " + statement, language);
+            RowIterator rows = query.execute().getRows();
+            return rows.hasNext() ? rows.nextRow().getValue("plan").getString() : "";
+        } catch (RepositoryException e) {
+            LOG.debug("Unable to explain query {}", statement, e);
+            return "unavailable";
+        }
+    }
+
+    /**
+     * Timings of a single request. Each {@link #mark(String)} attributes the time since the previous
+     * mark to the named phase; marks of the same phase add up.
+     */
+    public final class Trace {
+
+        private final String endpoint;
+        private final long start = System.nanoTime();
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+        private long last = start;
+        private Session session;
+        private Map<String, String> predicates;
+        private String statement;
+        private String plan;
+
+        private Trace(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public void mark(String phase) {
+            long now = System.nanoTime();
+            phases.merge(phase, now - last, Long::sum);
+            last = now;
+        }
+
+        /**
+         * Attaches the executed query. If the request is already slow and the session may be closed
+         * before {@link #finish()}, the plan is captured right away.
+         */
+        public void query(Session session, Map<String, String> predicates, SearchResult result) {
+            this.session = session;
+            this.predicates = predicates;
+            this.statement = result.getQueryStatement();
+            if (explainSlowQueries && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= slowQueryThresholdMs) {
+                this.plan = explain(session, statement);
+            }
+        }
+
+        /**
+         * Publishes the phase timings and keeps the request if it was slow.
+         */
+        public void finish() {
+            record(this);
+        }
+    }
+}
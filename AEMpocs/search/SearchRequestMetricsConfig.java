@@ -0,0 +1,17 @@
+package com.adobe.practise.website.core.search.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Searchbar Request Metrics Configuration")
+public @interface SearchRequestMetricsConfig {
+
+    @AttributeDefinition(name = "Slow Query Threshold (ms)", description = "Requests taking at least this long are captured as slow queries")
+    long slowQueryThresholdMs() default 500;
+
+    @AttributeDefinition(name = "Slow Query Capacity", description = "Number of recent slow queries kept, older ones are dropped first")
+    int slowQueryCapacity() default 25;
+
+    @AttributeDefinition(name = "Explain Slow Queries", description = "Capture the Oak query plan of slow queries")
+    boolean explainSlowQueries() default true;
+}
@@ -0,0 +1,21 @@
+package com.adobe.practise.website.core.search;
+
+/**
+ * JMX view of the slow searchbar queries. Per-phase latencies are published as Sling metrics.
+ */
+public interface SearchRequestMetricsMBean {
+
+    long getRequests();
+
+    long getSlowRequests();
+
+    long getSlowQueryThresholdMs();
+
+    /**
+     * Returns the captured slow queries, most recent first, one line each with the phase
+     * timings, the predicates, the query statement and its plan.
+     */
+    String[] getSlowQueries();
+
+    void clearSlowQueries();
+}
@@ -1,207 +1,586 @@
-package com.adobe.practise.website.core.servlets;
-
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-
-import javax.jcr.Node;
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-import javax.servlet.Servlet;
-
-import org.apache.sling.api.SlingHttpServletRequest;
-import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.osgi.service.component.annotations.Component;
-import org.osgi.service.component.annotations.Reference;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.day.cq.search.PredicateGroup;
-import com.day.cq.search.Query;
-import com.day.cq.search.QueryBuilder;
-import com.day.cq.search.result.Hit;
-import com.day.cq.search.result.SearchResult;
-
-@Component(
-    service = Servlet.class,
-    property = {
-        "sling.servlet.selectors=search",
-        "sling.servlet.resourceTypes=PractiseWebsite/components/searchbar",
-        "sling.servlet.extensions=json",
-        "sling.servlet.methods=GET"
-    }
-)
-public class SearchResourceTypeServlet extends SlingSafeMethodsServlet {
-
-    private static final long serialVersionUID = 1L;
-    private static final Logger logger = LoggerFactory.getLogger(SearchResourceTypeServlet.class);
-
-    @Reference
-    private QueryBuilder queryBuilder;
-
-    private static final int PAGE_SIZE = 8;
-
-    @Override
-    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
-        String searchRoot = request.getParameter("root");
-        String searchTerm = request.getParameter("q");
-        String tags = request.getParameter("tags");
-        int currentPage = Integer.parseInt(request.getParameter("page"));
-        int offset = (currentPage - 1) * PAGE_SIZE;
-
-        logger.debug("Received parameters - root: {}, searchTerm: {}, tags: {}, currentPage: {}", searchRoot, searchTerm, tags, currentPage);
-
-        Session session = request.getResourceResolver().adaptTo(Session.class);
-
-        if (session != null) {
-            try {
-                // Get the total number of results
-                SearchResult result = executeSearchQuery(session, searchRoot, searchTerm, tags, 0); // Offset 0 for total count
-                int totalResults = (int) result.getTotalMatches();
-
-                // Get results for the current page
-                result = executeSearchQuery(session, searchRoot, searchTerm, tags, offset);
-                JSONArray pagesArray = createSearchResultJson(result);
-
-                // Calculate total pages
-                int totalPages = (int) Math.ceil((double) totalResults / PAGE_SIZE);
-
-                // Create response JSON
-                JSONObject jsonResponse = new JSONObject();
-                jsonResponse.put("results", pagesArray);
-                jsonResponse.put("totalResults", totalResults);
-                jsonResponse.put("totalPages", totalPages);
-                jsonResponse.put("currentPage", currentPage);
-                jsonResponse.put("pageSize", PAGE_SIZE);
-
-                sendJsonResponse(response, jsonResponse);
-            } catch (Exception e) {
-                handleError(response, "Failed to create JSON response", e);
-            } finally {
-                closeSession(session);
-            }
-        } else {
-            handleError(response, "Session is null, unable to perform search", null);
-        }
-    }
-
-    /**
-     * Builds and executes the query using QueryBuilder.
-     */
-    private SearchResult executeSearchQuery(Session session, String searchRoot, String searchTerm, String tags, int offset) throws RepositoryException {
-        Map<String, String> queryMap = buildQueryMap(searchRoot, searchTerm, tags, offset);
-        Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
-        return query.getResult();
-    }
-
-    /**
-     * Builds the query parameters for the QueryBuilder.
-     */
-    private Map<String, String> buildQueryMap(String searchRoot, String searchTerm, String tags, int offset) {
-        Map<String, String> queryMap = new HashMap<>();
-        queryMap.put("path", searchRoot);
-        queryMap.put("type", "cq:Page");
-        queryMap.put("fulltext.relPath", "jcr:content");
-
-        if (searchTerm != null && !searchTerm.isEmpty()) {
-            queryMap.put("fulltext", searchTerm);
-        }
-
-        queryMap.put("p.offset", String.valueOf(offset));
-        queryMap.put("p.limit", String.valueOf(PAGE_SIZE));
-
-        if (tags != null && !tags.isEmpty()) {
-            String[] tagArray = tags.split(",");
-            for (int i = 0; i < tagArray.length; i++) {
-                queryMap.put("property." + (i + 1) + "_value", tagArray[i].trim());
-            }
-            queryMap.put("property.operation", "or");
-            queryMap.put("property", "jcr:content/cq:tags");
-        }
-        return queryMap;
-    }
-
-    /**
-     * Creates a JSON array from the search results.
-     */
-    private JSONArray createSearchResultJson(SearchResult result) throws RepositoryException, JSONException {
-        JSONArray pagesArray = new JSONArray();
-        for (Hit hit : result.getHits()) {
-            JSONObject pageObject = createPageJsonObject(hit);
-            pagesArray.put(pageObject);
-        }
-        return pagesArray;
-    }
-
-    /**
-     * Extracts page details and returns them as a JSON object.
-     */
-    private JSONObject createPageJsonObject(Hit hit) throws RepositoryException, JSONException {
-        String path = hit.getPath();
-        Node pageNode = hit.getResource().adaptTo(Node.class);
-
-        String title = "";
-        String thumbnail = "";
-
-        if (pageNode != null && pageNode.hasNode("jcr:content")) {
-            Node contentNode = pageNode.getNode("jcr:content");
-            title = getProperty(contentNode, "jcr:title", "");
-            thumbnail = getThumbnail(contentNode);
-        }
-
-        JSONObject pageObject = new JSONObject();
-        pageObject.put("path", path);
-        pageObject.put("title", title);
-        pageObject.put("thumbnail", thumbnail);
-        return pageObject;
-    }
-
-    /**
-     * Helper function to retrieve the thumbnail image.
-     */
-    private String getThumbnail(Node contentNode) throws RepositoryException {
-        if (contentNode.hasNode("image") && contentNode.getNode("image").hasProperty("fileReference")) {
-            return contentNode.getNode("image").getProperty("fileReference").getString();
-        }
-        return "";
-    }
-
-    /**
-     * Helper function to get a property from a JCR Node.
-     */
-    private String getProperty(Node node, String propertyName, String defaultValue) throws RepositoryException {
-        return node.hasProperty(propertyName) ? node.getProperty(propertyName).getString() : defaultValue;
-    }
-
-    /**
-     * Sends the JSON response to the client.
-     */
-    private void sendJsonResponse(SlingHttpServletResponse response, JSONObject jsonResponse) throws IOException {
-        logger.debug("JSON Response: {}", jsonResponse.toString());
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-        response.getWriter().write(jsonResponse.toString());
-    }
-
-    /**
-     * Closes the JCR session.
-     */
-    private void closeSession(Session session) {
-        if (session != null && session.isLive()) {
-            session.logout();
-        }
-    }
-
-    /**
-     * Handles error scenarios by logging and sending an appropriate error response.
-     */
-    private void handleError(SlingHttpServletResponse response, String errorMessage, Exception e) throws IOException {
-        logger.error(errorMessage, e);
-        response.setStatus(SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-        response.getWriter().write("{\"error\": \"" + errorMessage + "\"}");
-    }
-}
+package com.adobe.practise.website.core.servlets;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.Servlet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.HitProjection;
+import com.adobe.practise.website.core.search.JsonStreamWriter;
+import com.adobe.practise.website.core.search.PagePaths;
+import com.adobe.practise.website.core.search.SearchPrewarmService;
+import com.adobe.practise.website.core.search.SearchRequestMetrics;
+import com.adobe.practise.website.core.search.SearchResultCache;
+import com.adobe.practise.website.core.search.SearchSingleFlight;
+import com.adobe.practise.website.core.search.TagBitmapIndex;
+import com.adobe.practise.website.core.search.TagFacetIndex;
+import com.adobe.practise.website.core.search.TagFilter;
+import com.adobe.practise.website.core.servlets.config.SearchServletConfig;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.facets.Bucket;
+import com.day.cq.search.facets.Facet;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+
+@Component(
+    service = Servlet.class,
+    property = {
+        "sling.servlet.selectors=search",
+        "sling.servlet.resourceTypes=PractiseWebsite/components/searchbar",
+        "sling.servlet.extensions=json",
+        "sling.servlet.methods=GET"
+    }
+)
+@Designate(ocd = SearchServletConfig.class)
+public class SearchResourceTypeServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(SearchResourceTypeServlet.class);
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private TagFacetIndex tagFacetIndex;
+
+    @Reference
+    private SearchResultCache searchResultCache;
+
+    @Reference
+    private SearchRequestMetrics searchRequestMetrics;
+
+    @Reference
+    private SearchPrewarmService searchPrewarmService;
+
+    @Reference
+    private SearchSingleFlight searchSingleFlight;
+
+    private static final String CREATED_PROPERTY = "jcr:created";
+
+    private static final String TAGS_PROPERTY = "jcr:content/cq:tags";
+
+    /**
+     * Group that matches every page but carries a facet extractor for {@code cq:tags}, so that
+     * tag counts are collected from the same query execution that returns the hits.
+     */
+    private static final String TAG_FACET_GROUP = "9_group";
+
+    /**
+     * Negated group excluding the pages that carry any of the {@code tagsNot} tags.
+     */
+    private static final String EXCLUDED_TAGS_GROUP = "8_group";
+
+    /** Hits read per fulltext query window of a search term with an indexed tag filter. */
+    private static final int SELECTED_TERM_WINDOW_SIZE = 100;
+
+    /** Windows read at most before such a search is answered from the hits found so far. */
+    private static final int MAX_SELECTED_TERM_WINDOWS = 10;
+
+    private volatile int pageSize;
+    private volatile int maxPageNumber;
+    private volatile HitProjection hitProjection;
+
+    @Activate
+    @Modified
+    protected void activate(SearchServletConfig config) {
+        this.pageSize = Math.max(1, config.pageSize());
+        this.maxPageNumber = config.maxPageNumber();
+        this.hitProjection = HitProjection.create(config.extraFields());
+    }
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        String searchRoot = request.getParameter("root");
+        String searchTerm = request.getParameter("q");
+        String tags = request.getParameter("tags");
+        TagFilter tagFilter = TagFilter.parse(tags, request.getParameter("tagsAll"), request.getParameter("tagsNot"));
+        String guessTotal = getGuessTotal(request.getParameter("guessTotal"));
+        boolean includeFacets = Boolean.parseBoolean(request.getParameter("facets"));
+        String cursorToken = request.getParameter("cursor");
+        boolean cursorMode = cursorToken != null;
+        SearchCursor cursor = StringUtils.isEmpty(cursorToken) ? null : SearchCursor.decode(cursorToken);
+        int currentPage = cursorMode ? 0 : NumberUtils.toInt(request.getParameter("page"), 1);
+
+        logger.debug("Received parameters - root: {}, searchTerm: {}, tags: {}, currentPage: {}, cursor: {}", searchRoot, searchTerm, tags, currentPage, cursorToken);
+
+        if (cursorMode ? StringUtils.isNotEmpty(cursorToken) && cursor == null
+                : currentPage < 1 || (maxPageNumber > 0 && currentPage > maxPageNumber)) {
+            response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid page or cursor, use the next cursor for deep pages\"}");
+            return;
+        }
+        searchPrewarmService.record(request);
+
+        // Responses are only buffered if they are cached or shared with coalesced requests
+        boolean buffered = searchResultCache.isEnabled() || searchSingleFlight.isEnabled();
+        String cacheKey = null;
+        if (buffered) {
+            Map<String, String> cacheParameters = new HashMap<>();
+            cacheParameters.put("root", PagePaths.normalize(searchRoot));
+            cacheParameters.put("q", searchTerm);
+            cacheParameters.put("tags", TagFilter.join(tagFilter.getAnyOf()));
+            cacheParameters.put("tagsAll", TagFilter.join(tagFilter.getAllOf()));
+            cacheParameters.put("tagsNot", TagFilter.join(tagFilter.getNoneOf()));
+            cacheParameters.put("mode", cursorMode ? "cursor" : "page");
+            cacheParameters.put("page", cursorMode ? cursorToken : String.valueOf(currentPage));
+            cacheParameters.put("guessTotal", guessTotal);
+            cacheParameters.put("facets", String.valueOf(includeFacets));
+            cacheKey = searchResultCache.createKey("search", cacheParameters, request.getResourceResolver());
+        }
+        if (searchResultCache.isEnabled()) {
+            String cached = searchResultCache.get(cacheKey);
+            if (cached != null) {
+                response.setContentType("application/json");
+                response.setCharacterEncoding("UTF-8");
+                response.getWriter().write(cached);
+                return;
+            }
+        }
+
+        Session session = request.getResourceResolver().adaptTo(Session.class);
+
+        if (session != null) {
+            try {
+                response.setContentType("application/json");
+                response.setCharacterEncoding("UTF-8");
+                if (buffered) {
+                    // Concurrent identical requests share one execution and its response
+                    String key = cacheKey;
+                    String body = searchSingleFlight.execute(key, () -> {
+                        StringWriter out = new StringWriter();
+                        search(request.getResourceResolver(), session, searchRoot, searchTerm, tagFilter, guessTotal,
+                                includeFacets, cursorMode, cursor, currentPage, out);
+                        String rendered = out.toString();
+                        searchResultCache.put(key, searchRoot, rendered);
+                        return rendered;
+                    });
+                    response.getWriter().write(body);
+                } else {
+                    search(request.getResourceResolver(), session, searchRoot, searchTerm, tagFilter, guessTotal,
+                            includeFacets, cursorMode, cursor, currentPage, response.getWriter());
+                }
+            } catch (Exception e) {
+                handleError(response, "Failed to create JSON response", e);
+            } finally {
+                closeSession(session);
+            }
+        } else {
+            handleError(response, "Session is null, unable to perform search", null);
+        }
+    }
+
+    /**
+     * Runs the search and renders the response to the writer, either straight to the client or to a
+     * buffer that is cached and returned to all requests coalesced with this one.
+     */
+    private void search(ResourceResolver resolver, Session session, String searchRoot, String searchTerm, TagFilter tagFilter,
+            String guessTotal, boolean includeFacets, boolean cursorMode, SearchCursor cursor, int currentPage,
+            Writer out) throws RepositoryException, IOException {
+        SearchRequestMetrics.Trace trace = searchRequestMetrics.start("search");
+        JsonStreamWriter json = new JsonStreamWriter(out);
+        json.beginObject();
+
+        // Tag filters on an indexed subtree are resolved from the tag bitmaps instead of the query
+        TagBitmapIndex.Selection selection = cursorMode || !tagFacetIndex.covers(searchRoot)
+                ? null : tagFacetIndex.select(tagFilter);
+        if (selection != null && StringUtils.isEmpty(searchTerm)) {
+            writeSelectedPage(json, resolver, searchRoot, selection, currentPage, includeFacets, trace);
+        } else if (selection != null) {
+            writeSelectedTermPage(json, session, searchRoot, searchTerm, selection, currentPage, includeFacets, trace);
+        } else {
+            // Facets over a public subtree can be served by the tag index without a facet predicate
+            boolean indexedFacets = includeFacets && StringUtils.isEmpty(searchTerm) && tagFilter.isEmpty()
+                    && tagFacetIndex.coversPublic(searchRoot);
+
+            // A single execution returns the current page, the total and the facets
+            Map<String, String> queryMap = cursorMode
+                    ? buildCursorQueryMap(searchRoot, searchTerm, tagFilter, cursor)
+                    : buildQueryMap(searchRoot, searchTerm, tagFilter, (currentPage - 1) * pageSize, pageSize);
+            if (!cursorMode && StringUtils.isEmpty(searchTerm)) {
+                // Same order as the pages selected from the tag bitmaps
+                queryMap.put("orderby", "@jcr:path");
+            }
+            SearchResult result = executeSearchQuery(session, queryMap, guessTotal, includeFacets && !indexedFacets, trace);
+
+            Map<String, Integer> facetCounts = null;
+            if (includeFacets) {
+                facetCounts = indexedFacets ? tagFacetIndex.getTagCounts(searchRoot) : getFacetCounts(result);
+            }
+
+            if (cursorMode) {
+                List<Hit> hits = new ArrayList<>(pageSize);
+                SearchCursor next = collectCursorPage(result, cursor, hits);
+                writeHits(json, hits);
+                json.property("next", next == null ? null : next.encode());
+            } else {
+                int totalResults = (int) result.getTotalMatches();
+                writeHits(json, result.getHits());
+                json.property("totalResults", totalResults);
+                json.property("totalPages", (int) Math.ceil((double) totalResults / pageSize));
+                json.property("currentPage", currentPage);
+            }
+            json.property("pageSize", pageSize);
+            if (guessTotal != null && !cursorMode) {
+                json.property("totalIsEstimate", true);
+                json.property("moreResults", result.hasMore());
+            }
+            if (facetCounts != null) {
+                writeFacets(json, facetCounts);
+            }
+            trace.query(session, queryMap, result);
+            logger.debug("Search response rendered for root: {}, hits: {}", searchRoot, result.getHits().size());
+        }
+
+        json.endObject();
+        trace.mark(SearchRequestMetrics.PHASE_RENDER);
+        json.flush();
+        trace.mark(SearchRequestMetrics.PHASE_WRITE);
+        trace.finish();
+    }
+
+    /**
+     * Renders a page-number request without a search term whose tag filter was resolved by the tag
+     * bitmap index. The selected pages are the hits, ordered by path like the query of such requests.
+     *
+     * <p>The index is built by a service user, so the candidates are checked for read access, but only
+     * until the requested page is filled. Below a public path every page is readable, so the total and
+     * the facets are taken from the selection. Elsewhere the number of selected pages is reported as an
+     * estimated total, and facets, which must not count pages the user cannot read, need every
+     * candidate to be checked.</p>
+     */
+    private void writeSelectedPage(JsonStreamWriter json, ResourceResolver resolver, String searchRoot,
+            TagBitmapIndex.Selection selection, int currentPage, boolean includeFacets,
+            SearchRequestMetrics.Trace trace) throws IOException {
+        List<String> candidates = selection.getPaths(searchRoot);
+        trace.mark(SearchRequestMetrics.PHASE_GET_RESULT);
+
+        boolean publicRoot = tagFacetIndex.coversPublic(searchRoot);
+        boolean checkAll = includeFacets && !publicRoot;
+        int offset = (currentPage - 1) * pageSize;
+        List<Resource> pages = new ArrayList<>(pageSize);
+        Map<String, Integer> facetCounts = includeFacets ? new LinkedHashMap<>() : null;
+        int readable = 0;
+        int checked = 0;
+        for (; checked < candidates.size() && (checkAll || readable < offset + pageSize); checked++) {
+            String path = candidates.get(checked);
+            Resource page = resolver.getResource(path);
+            if (page == null) {
+                continue;
+            }
+            if (readable >= offset && pages.size() < pageSize) {
+                pages.add(page);
+            }
+            readable++;
+            if (checkAll) {
+                addPageTags(facetCounts, path);
+            }
+        }
+        if (facetCounts != null && publicRoot) {
+            for (String path : candidates) {
+                addPageTags(facetCounts, path);
+            }
+        }
+        boolean complete = publicRoot || checked == candidates.size();
+        int totalResults = complete && !publicRoot ? readable : candidates.size();
+
+        json.name("results").beginArray();
+        for (Resource page : pages) {
+            hitProjection.write(json, page);
+        }
+        json.endArray();
+        json.property("totalResults", totalResults);
+        json.property("totalPages", (int) Math.ceil((double) totalResults / pageSize));
+        json.property("currentPage", currentPage);
+        json.property("pageSize", pageSize);
+        if (!complete) {
+            json.property("totalIsEstimate", true);
+            json.property("moreResults", true);
+        }
+        if (facetCounts != null) {
+            writeFacets(json, facetCounts);
+        }
+        logger.debug("Indexed tag search rendered for root: {}, selected: {}, checked: {}", searchRoot, selection.getCount(), checked);
+    }
+
+    /**
+     * Renders a page-number request with a search term whose tag filter was resolved by the tag bitmap
+     * index. The fulltext query runs without tag predicates in bounded windows and only its hits inside
+     * the selection are kept, until the requested page is filled. The hits come from the request
+     * session and need no further read check. The total and the facets cover the windows read, the
+     * total is an estimate unless the query was read to its end.
+     */
+    private void writeSelectedTermPage(JsonStreamWriter json, Session session, String searchRoot, String searchTerm,
+            TagBitmapIndex.Selection selection, int currentPage, boolean includeFacets,
+            SearchRequestMetrics.Trace trace) throws RepositoryException, IOException {
+        int offset = (currentPage - 1) * pageSize;
+        int windowSize = Math.max(SELECTED_TERM_WINDOW_SIZE, pageSize);
+        TagFilter noTags = TagFilter.parse(null, null, null);
+        List<Hit> hits = new ArrayList<>(pageSize);
+        Map<String, Integer> facetCounts = includeFacets ? new LinkedHashMap<>() : null;
+        Map<String, String> queryMap = null;
+        SearchResult result = null;
+        int totalResults = 0;
+        boolean exhausted = false;
+        for (int window = 0; window < MAX_SELECTED_TERM_WINDOWS && !exhausted && totalResults < offset + pageSize; window++) {
+            queryMap = buildQueryMap(searchRoot, searchTerm, noTags, window * windowSize, windowSize);
+            result = executeSearchQuery(session, queryMap, "true", false, trace);
+            List<Hit> windowHits = result.getHits();
+            exhausted = windowHits.size() < windowSize;
+            for (Hit hit : windowHits) {
+                String path = hit.getPath();
+                if (!selection.contains(path)) {
+                    continue;
+                }
+                if (totalResults >= offset && hits.size() < pageSize) {
+                    hits.add(hit);
+                }
+                totalResults++;
+                if (facetCounts != null) {
+                    addPageTags(facetCounts, path);
+                }
+            }
+        }
+
+        writeHits(json, hits);
+        json.property("totalResults", totalResults);
+        json.property("totalPages", (int) Math.ceil((double) totalResults / pageSize));
+        json.property("currentPage", currentPage);
+        json.property("pageSize", pageSize);
+        if (!exhausted) {
+            json.property("totalIsEstimate", true);
+            json.property("moreResults", true);
+        }
+        if (facetCounts != null) {
+            writeFacets(json, facetCounts);
+        }
+        if (result != null) {
+            trace.query(session, queryMap, result);
+        }
+        logger.debug("Indexed tag term search rendered for root: {}, selected: {}, hits: {}", searchRoot, selection.getCount(), totalResults);
+    }
+
+    private void addPageTags(Map<String, Integer> facetCounts, String pagePath) {
+        for (String tag : tagFacetIndex.getPageTags(pagePath)) {
+            facetCounts.merge(tag, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Builds and executes the query using QueryBuilder, timing both steps on the trace.
+     */
+    private SearchResult executeSearchQuery(Session session, Map<String, String> queryMap, String guessTotal,
+            boolean includeFacets, SearchRequestMetrics.Trace trace) throws RepositoryException {
+        if (guessTotal != null) {
+            queryMap.put("p.guessTotal", guessTotal);
+        }
+        if (includeFacets) {
+            queryMap.put(TAG_FACET_GROUP + ".p.or", "true");
+            queryMap.put(TAG_FACET_GROUP + ".1_property", TAGS_PROPERTY);
+            queryMap.put(TAG_FACET_GROUP + ".1_property.operation", "exists");
+            queryMap.put(TAG_FACET_GROUP + ".2_property", TAGS_PROPERTY);
+            queryMap.put(TAG_FACET_GROUP + ".2_property.operation", "not");
+        }
+        Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
+        trace.mark(SearchRequestMetrics.PHASE_CREATE_QUERY);
+        SearchResult result = query.getResult();
+        trace.mark(SearchRequestMetrics.PHASE_GET_RESULT);
+        return result;
+    }
+
+    /**
+     * Builds the query parameters for the QueryBuilder. Pages must carry one of the {@code anyOf} tags,
+     * all {@code allOf} tags and none of the {@code noneOf} tags.
+     */
+    static Map<String, String> buildQueryMap(String searchRoot, String searchTerm, TagFilter tagFilter, int offset, int limit) {
+        Map<String, String> queryMap = new HashMap<>();
+        queryMap.put("path", searchRoot);
+        queryMap.put("type", "cq:Page");
+        queryMap.put("fulltext.relPath", "jcr:content");
+
+        if (searchTerm != null && !searchTerm.isEmpty()) {
+            queryMap.put("fulltext", searchTerm);
+        }
+
+        queryMap.put("p.offset", String.valueOf(offset));
+        queryMap.put("p.limit", String.valueOf(limit));
+
+        List<String> anyOf = tagFilter.getAnyOf();
+        if (!anyOf.isEmpty()) {
+            for (int i = 0; i < anyOf.size(); i++) {
+                queryMap.put("property." + (i + 1) + "_value", anyOf.get(i));
+            }
+            queryMap.put("property.operation", "or");
+            queryMap.put("property", TAGS_PROPERTY);
+        }
+
+        List<String> allOf = tagFilter.getAllOf();
+        if (!allOf.isEmpty()) {
+            for (int i = 0; i < allOf.size(); i++) {
+                queryMap.put("2_property." + (i + 1) + "_value", allOf.get(i));
+            }
+            queryMap.put("2_property.and", "true");
+            queryMap.put("2_property", TAGS_PROPERTY);
+        }
+
+        List<String> noneOf = tagFilter.getNoneOf();
+        if (!noneOf.isEmpty()) {
+            for (int i = 0; i < noneOf.size(); i++) {
+                queryMap.put(EXCLUDED_TAGS_GROUP + ".property." + (i + 1) + "_value", noneOf.get(i));
+            }
+            queryMap.put(EXCLUDED_TAGS_GROUP + ".property", TAGS_PROPERTY);
+            queryMap.put(EXCLUDED_TAGS_GROUP + ".p.not", "true");
+        }
+        return queryMap;
+    }
+
+    /**
+     * Builds the query parameters for a keyset page ordered by creation date and path, starting at the
+     * cursor. The hits already returned at the cursor date are skipped by offset, plus one hit is
+     * requested to detect a next page.
+     */
+    private Map<String, String> buildCursorQueryMap(String searchRoot, String searchTerm, TagFilter tagFilter, SearchCursor cursor) {
+        int skipped = cursor == null ? 0 : cursor.getTieOffset();
+        Map<String, String> queryMap = buildQueryMap(searchRoot, searchTerm, tagFilter, skipped, pageSize + 1);
+        queryMap.put("1_orderby", "@" + CREATED_PROPERTY);
+        queryMap.put("1_orderby.sort", "asc");
+        queryMap.put("2_orderby", "@jcr:path");
+        queryMap.put("2_orderby.sort", "asc");
+        if (cursor != null) {
+            Calendar lastCreated = Calendar.getInstance();
+            lastCreated.setTimeInMillis(cursor.getLastCreated());
+            queryMap.put("1_daterange.property", CREATED_PROPERTY);
+            queryMap.put("1_daterange.lowerBound", ISO8601.format(lastCreated));
+            queryMap.put("1_daterange.lowerOperation", ">=");
+        }
+        return queryMap;
+    }
+
+    /**
+     * Collects the hits of a keyset page and returns the cursor for the following page or null if this
+     * is the last one. Hits at the cursor date that sort before the last returned path were added since
+     * the previous page and moved the offset back, so they are dropped.
+     */
+    private SearchCursor collectCursorPage(SearchResult result, SearchCursor cursor, List<Hit> hits) throws RepositoryException {
+        long lastCreated = cursor == null ? Long.MIN_VALUE : cursor.getLastCreated();
+        int tieOffset = cursor == null ? 0 : cursor.getTieOffset();
+        String lastPath = cursor == null ? null : cursor.getLastPath();
+        boolean hasNext = false;
+        for (Hit hit : result.getHits()) {
+            Calendar createdDate = hit.getResource().getValueMap().get(CREATED_PROPERTY, Calendar.class);
+            long created = createdDate == null ? 0L : createdDate.getTimeInMillis();
+            String path = hit.getPath();
+            if (created == lastCreated && lastPath != null && path.compareTo(lastPath) <= 0) {
+                continue;
+            }
+            if (hits.size() == pageSize) {
+                hasNext = true;
+                break;
+            }
+            if (created != lastCreated) {
+                lastCreated = created;
+                tieOffset = 0;
+            }
+            tieOffset++;
+            lastPath = path;
+            hits.add(hit);
+        }
+        return hasNext ? new SearchCursor(lastCreated, tieOffset, lastPath) : null;
+    }
+
+    /**
+     * Streams the hits as the results array of the response.
+     */
+    private void writeHits(JsonStreamWriter json, List<Hit> hits) throws RepositoryException, IOException {
+        json.name("results").beginArray();
+        for (Hit hit : hits) {
+            hitProjection.write(json, hit.getResource());
+        }
+        json.endArray();
+    }
+
+    /**
+     * Collects the tag counts from the facets gathered by the search query.
+     */
+    private Map<String, Integer> getFacetCounts(SearchResult result) throws RepositoryException {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, Facet> entry : result.getFacets().entrySet()) {
+            if (entry.getKey().startsWith(TAG_FACET_GROUP) && entry.getKey().endsWith("1_property")) {
+                for (Bucket bucket : entry.getValue().getBuckets()) {
+                    counts.put(bucket.getValue(), (int) bucket.getCount());
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Writes the tag counts as the facets object of the response.
+     */
+    private void writeFacets(JsonStreamWriter json, Map<String, Integer> counts) throws IOException {
+        json.name("facets").beginObject();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            json.property(entry.getKey(), entry.getValue());
+        }
+        json.endObject();
+    }
+
+    /**
+     * Validates the guessTotal parameter, which is either "true" or a positive number of hits to count.
+     */
+    private String getGuessTotal(String guessTotal) {
+        if ("true".equals(guessTotal) || (StringUtils.isNumeric(guessTotal) && guessTotal.length() < 10 && Integer.parseInt(guessTotal) > 0)) {
+            return guessTotal;
+        }
+        return null;
+    }
+
+    /**
+     * Closes the JCR session.
+     */
+    private void closeSession(Session session) {
+        if (session != null && session.isLive()) {
+            session.logout();
+        }
+    }
+
+    /**
+     * Handles error scenarios by logging and sending an appropriate error response.
+     */
+    private void handleError(SlingHttpServletResponse response, String errorMessage, Exception e) throws IOException {
+        logger.error(errorMessage, e);
+        if (response.isCommitted()) {
+            // Unbuffered responses are streamed, once part of the body has been sent the client sees a truncated response
+            return;
+        }
+        response.resetBuffer();
+        response.setStatus(SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        new JsonStreamWriter(response.getWriter()).beginObject().property("error", errorMessage).endObject();
+    }
+}
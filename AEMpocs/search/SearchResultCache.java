@@ -0,0 +1,234 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.config.SearchResultCacheConfig;
+
+/**
+ * Bounded LRU cache of searchbar JSON responses.
+ *
+ * <p>Entries are keyed by the endpoint, the normalised request parameters and the principals of the
+ * requesting user, since results depend on read access. Entries expire after the configured TTL and
+ * are evicted as soon as a page inside the subtree they were computed for changes.</p>
+ */
+@Component(service = {SearchResultCache.class, SearchResultCacheMBean.class, ResourceChangeListener.class},
+        immediate = true,
+        property = {
+                "jmx.objectname=com.adobe.practise.website:type=SearchResultCache",
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        }
+)
+@Designate(ocd = SearchResultCacheConfig.class)
+public class SearchResultCache implements SearchResultCacheMBean, ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchResultCache.class);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private volatile boolean enabled;
+    private volatile long ttlMillis;
+    private Map<String, Entry> entries = Collections.emptyMap();
+
+    @Activate
+    @Modified
+    protected synchronized void activate(SearchResultCacheConfig config) {
+        this.enabled = config.enable();
+        this.ttlMillis = config.ttlSeconds() * 1000L;
+        final int maxEntries = Math.max(1, config.maxEntries());
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        LOG.info("Search result cache activated, enabled: {}, max entries: {}, ttl: {}s", enabled, maxEntries, config.ttlSeconds());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds the cache key of a request from its endpoint, its parameters and the principals of its user.
+     * Parameters with blank values are ignored so that equivalent requests share an entry.
+     */
+    public String createKey(String endpoint, Map<String, String> parameters, ResourceResolver resolver) {
+        StringBuilder key = new StringBuilder(endpoint);
+        for (Map.Entry<String, String> parameter : new TreeMap<>(parameters).entrySet()) {
+            if (StringUtils.isNotBlank(parameter.getValue())) {
+                key.append('|').append(parameter.getKey()).append('=').append(parameter.getValue().trim());
+            }
+        }
+        return key.append('#').append(getPrincipalKey(resolver)).toString();
+    }
+
+    /**
+     * Returns the cached response for the key, or null if there is none or it has expired.
+     */
+    public String get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.body;
+    }
+
+    /**
+     * Caches a response computed for the subtree at the given root path.
+     */
+    public void put(String key, String rootPath, String body) {
+        if (!enabled || StringUtils.isBlank(rootPath)) {
+            return;
+        }
+        Entry entry = new Entry(PagePaths.normalize(rootPath), body, System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+    }
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        Set<String> pagePaths = new LinkedHashSet<>();
+        for (ResourceChange change : changes) {
+            pagePaths.add(PagePaths.toPagePath(change.getPath()));
+        }
+        int removed = 0;
+        synchronized (this) {
+            for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+                Entry entry = iterator.next();
+                for (String pagePath : pagePaths) {
+                    if (PagePaths.isSameOrDescendant(entry.rootPath, pagePath) || PagePaths.isSameOrDescendant(pagePath, entry.rootPath)) {
+                        iterator.remove();
+                        removed++;
+                        break;
+                    }
+                }
+            }
+        }
+        if (removed > 0) {
+            invalidations.addAndGet(removed);
+            LOG.debug("Invalidated {} cached search responses for changes below {}", removed, pagePaths);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the sorted IDs of the user and all groups it is a member of.
+     */
+    private String getPrincipalKey(ResourceResolver resolver) {
+        String userId = resolver.getUserID();
+        List<String> principals = new ArrayList<>();
+        try {
+            UserManager userManager = resolver.adaptTo(UserManager.class);
+            Authorizable authorizable = userManager == null ? null : userManager.getAuthorizable(userId);
+            if (authorizable != null) {
+                Iterator<Group> groups = authorizable.memberOf();
+                while (groups.hasNext()) {
+                    principals.add(groups.next().getID());
+                }
+            }
+        } catch (RepositoryException e) {
+            LOG.warn("Unable to read group memberships of {}, caching per user only", userId, e);
+        }
+        Collections.sort(principals);
+        return userId + ":" + StringUtils.join(principals, ',');
+    }
+
+    private static final class Entry {
+
+        private final String rootPath;
+        private final String body;
+        private final long expires;
+
+        private Entry(String rootPath, String body, long expires) {
+            this.rootPath = rootPath;
+            this.body = body;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.adobe.practise.website.core.search.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Searchbar Result Cache Configuration")
+public @interface SearchResultCacheConfig {
+
+    @AttributeDefinition(name = "Enable", description = "Cache search and tag responses")
+    boolean enable() default true;
+
+    @AttributeDefinition(name = "Max Entries", description = "Maximum number of cached responses, least recently used ones are evicted first")
+    int maxEntries() default 1000;
+
+    @AttributeDefinition(name = "TTL (seconds)", description = "Time after which a cached response is discarded")
+    int ttlSeconds() default 300;
+
+    @AttributeDefinition(name = "Root Paths", description = "Subtrees whose page changes invalidate cached responses")
+    String[] resource_paths() default {"/content"};
+}
@@ -0,0 +1,21 @@
+package com.adobe.practise.website.core.search;
+
+/**
+ * JMX view of the searchbar result cache.
+ */
+public interface SearchResultCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getInvalidations();
+
+    int getSize();
+
+    double getHitRatio();
+
+    void clear();
+}
@@ -0,0 +1,19 @@
+package com.adobe.practise.website.core.servlets.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Searchbar Search Servlet Configuration")
+public @interface SearchServletConfig {
+
+    @AttributeDefinition(name = "Page Size", description = "Number of hits returned per page")
+    int pageSize() default 8;
+
+    @AttributeDefinition(name = "Max Page Number",
+            description = "Highest page number served in page-number mode, deeper pages must use the cursor. 0 means unlimited")
+    int maxPageNumber() default 0;
+
+    @AttributeDefinition(name = "Extra Fields",
+            description = "Additional hit fields as name=property, with the property path relative to jcr:content, e.g. description=jcr:description")
+    String[] extraFields() default {};
+}
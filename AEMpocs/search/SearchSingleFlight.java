@@ -0,0 +1,124 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.config.SearchSingleFlightConfig;
+
+/**
+ * Coalesces concurrent identical searchbar requests, so that a burst of them runs the repository
+ * queries once instead of once per request.
+ *
+ * <p>Requests are keyed like the result cache, by endpoint, normalised parameters and the principals
+ * of the user, so only requests that would get the same response share an execution. The first
+ * request runs it, the others wait for its response or its failure. A request that waits longer
+ * than the timeout gives up and executes on its own.</p>
+ */
+@Component(service = {SearchSingleFlight.class, SearchSingleFlightMBean.class},
+        property = "jmx.objectname=com.adobe.practise.website:type=SearchSingleFlight")
+@Designate(ocd = SearchSingleFlightConfig.class)
+public class SearchSingleFlight implements SearchSingleFlightMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchSingleFlight.class);
+
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private volatile boolean enabled;
+    private volatile long waitTimeoutMillis;
+
+    @Activate
+    @Modified
+    protected void activate(SearchSingleFlightConfig config) {
+        this.enabled = config.enable();
+        this.waitTimeoutMillis = Math.max(1, config.waitTimeoutSeconds()) * 1000L;
+        LOG.info("Search request coalescing activated, enabled: {}, wait timeout: {}s", enabled, config.waitTimeoutSeconds());
+    }
+
+    /**
+     * Returns true if identical requests are coalesced, i.e. if their responses need to be buffered
+     * to be shared.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the response for the key, running the loader unless an identical request is already
+     * executing it, in which case its response is returned.
+     */
+    public String execute(String key, Callable<String> loader) throws Exception {
+        if (!enabled) {
+            executions.incrementAndGet();
+            return loader.call();
+        }
+        CompletableFuture<String> flight = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            return await(existing, loader);
+        }
+        executions.incrementAndGet();
+        try {
+            String response = loader.call();
+            flight.complete(response);
+            return response;
+        } catch (Throwable t) {
+            flight.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    @Override
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    @Override
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private String await(CompletableFuture<String> flight, Callable<String> loader) throws Exception {
+        coalescedRequests.incrementAndGet();
+        try {
+            return flight.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            LOG.debug("Timed out waiting for an identical search request, executing on its own");
+            executions.incrementAndGet();
+            return loader.call();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.adobe.practise.website.core.search.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Searchbar Request Coalescing Configuration")
+public @interface SearchSingleFlightConfig {
+
+    @AttributeDefinition(name = "Enable", description = "Let concurrent identical searchbar requests share one execution")
+    boolean enable() default true;
+
+    @AttributeDefinition(name = "Wait Timeout (seconds)",
+            description = "Time a request waits for an identical one in flight before it executes on its own")
+    int waitTimeoutSeconds() default 30;
+}
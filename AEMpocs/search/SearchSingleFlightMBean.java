@@ -0,0 +1,15 @@
+package com.adobe.practise.website.core.search;
+
+/**
+ * JMX view of the searchbar request coalescing.
+ */
+public interface SearchSingleFlightMBean {
+
+    long getExecutions();
+
+    long getCoalescedRequests();
+
+    long getTimeouts();
+
+    int getInFlight();
+}
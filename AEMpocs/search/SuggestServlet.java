@@ -0,0 +1,109 @@
+package com.adobe.practise.website.core.servlets;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.Servlet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.JsonStreamWriter;
+import com.adobe.practise.website.core.search.Suggestion;
+import com.adobe.practise.website.core.search.TagFacetIndex;
+import com.adobe.practise.website.core.search.TitleSuggestIndex;
+
+/**
+ * Typeahead suggestions for the search bar, answered from the in-memory title and tag indexes
+ * without querying the repository. Suggested pages are checked against the request's resolver.
+ */
+@Component(
+    service = Servlet.class,
+    property = {
+        "sling.servlet.selectors=suggest",
+        "sling.servlet.resourceTypes=PractiseWebsite/components/searchbar",
+        "sling.servlet.extensions=json",
+        "sling.servlet.methods=GET"
+    }
+)
+public class SuggestServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(SuggestServlet.class);
+
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 50;
+
+    @Reference
+    private TitleSuggestIndex titleSuggestIndex;
+
+    @Reference
+    private TagFacetIndex tagFacetIndex;
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        String searchRoot = request.getParameter("root");
+        String prefix = StringUtils.trimToEmpty(request.getParameter("q"));
+        int limit = Math.min(MAX_LIMIT, Math.max(1, NumberUtils.toInt(request.getParameter("limit"), DEFAULT_LIMIT)));
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        if (StringUtils.isBlank(searchRoot) || prefix.isEmpty()) {
+            response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"root and q parameters are required\"}");
+            return;
+        }
+        if (!titleSuggestIndex.isReady()) {
+            response.setStatus(SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().write("{\"error\": \"Suggestions are not available yet\"}");
+            return;
+        }
+
+        // Suggestions come from a service user index, only pages the requesting user can read are returned
+        ResourceResolver resolver = request.getResourceResolver();
+        List<Suggestion> pages = titleSuggestIndex.suggest(searchRoot, prefix, limit,
+                path -> resolver.getResource(path) != null);
+        logger.debug("Suggest for root: {}, prefix: {} returned {} pages", searchRoot, prefix, pages.size());
+
+        JsonStreamWriter json = new JsonStreamWriter(response.getWriter());
+        json.beginObject().name("pages").beginArray();
+        for (Suggestion page : pages) {
+            json.beginObject().property("path", page.getPath()).property("title", page.getTitle()).endObject();
+        }
+        json.endArray();
+        writeTags(json, searchRoot, prefix.toLowerCase(Locale.ROOT), limit);
+        json.endObject().flush();
+    }
+
+    /**
+     * Writes the tags used below the root whose ID or name starts with the prefix. Tags are only
+     * suggested below public paths of the tag index, where every user can read all tagged pages.
+     */
+    private void writeTags(JsonStreamWriter json, String searchRoot, String prefix, int limit) throws IOException {
+        json.name("tags").beginArray();
+        if (tagFacetIndex.coversPublic(searchRoot)) {
+            int count = 0;
+            for (String tag : tagFacetIndex.getTags(searchRoot)) {
+                if (count >= limit) {
+                    break;
+                }
+                String tagId = tag.toLowerCase(Locale.ROOT);
+                String name = tagId.substring(Math.max(tagId.lastIndexOf(':'), tagId.lastIndexOf('/')) + 1);
+                if (tagId.startsWith(prefix) || name.startsWith(prefix)) {
+                    json.value(tag);
+                    count++;
+                }
+            }
+        }
+        json.endArray();
+    }
+}
@@ -0,0 +1,23 @@
+package com.adobe.practise.website.core.search;
+
+/**
+ * Page offered by the typeahead suggestions.
+ */
+public final class Suggestion {
+
+    private final String path;
+    private final String title;
+
+    public Suggestion(String path, String title) {
+        this.path = path;
+        this.title = title;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+}
@@ -0,0 +1,153 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
+/**
+ * Inverted index from tag ID to a compressed bitmap of the IDs of the pages carrying it, so that
+ * AND, OR and NOT tag filters are answered with bitmap operations instead of a repository query.
+ *
+ * <p>The index is owned and fed by the {@link TagFacetIndex}, which calls {@link #updatePage}
+ * under its own lock. Page IDs are handed out in the order pages are first seen and are only
+ * reused after a rebuild, so a {@link Selection} taken earlier does not resolve to another page
+ * when pages are removed meanwhile.</p>
+ */
+public final class TagBitmapIndex {
+
+    private final Map<String, Integer> pageIds = new HashMap<>();
+    private final List<String> pagePaths = new ArrayList<>();
+    private final Map<String, PageIdBitmap> postings = new HashMap<>();
+
+    /**
+     * Moves a page from its previous tags to its current ones. An empty tag set drops the page.
+     */
+    synchronized void updatePage(String pagePath, Set<String> previous, Set<String> tags) {
+        Integer id = pageIds.get(pagePath);
+        if (id == null) {
+            if (tags.isEmpty()) {
+                return;
+            }
+            id = pagePaths.size();
+            pageIds.put(pagePath, id);
+            pagePaths.add(pagePath);
+        }
+        for (String tag : previous) {
+            if (!tags.contains(tag)) {
+                PageIdBitmap posting = postings.get(tag);
+                if (posting != null) {
+                    posting.remove(id);
+                    if (posting.isEmpty()) {
+                        postings.remove(tag);
+                    }
+                }
+            }
+        }
+        for (String tag : tags) {
+            postings.computeIfAbsent(tag, key -> new PageIdBitmap()).add(id);
+        }
+        if (tags.isEmpty()) {
+            pageIds.remove(pagePath);
+            pagePaths.set(id, null);
+        }
+    }
+
+    synchronized void clear() {
+        pageIds.clear();
+        pagePaths.clear();
+        postings.clear();
+    }
+
+    /**
+     * Returns the pages matching the filter, or null if the filter has no required tags and can
+     * therefore not be answered from tagged pages alone.
+     */
+    public synchronized Selection select(TagFilter filter) {
+        if (!filter.hasRequiredTags()) {
+            return null;
+        }
+        PageIdBitmap result = null;
+        for (String tag : filter.getAnyOf()) {
+            PageIdBitmap posting = posting(tag);
+            result = result == null ? posting.copy() : PageIdBitmap.or(result, posting);
+        }
+        // Intersect the smallest postings first, so that the intermediate results shrink quickly
+        List<PageIdBitmap> required = new ArrayList<>();
+        for (String tag : filter.getAllOf()) {
+            required.add(posting(tag));
+        }
+        required.sort(Comparator.comparingInt(PageIdBitmap::getCardinality));
+        for (PageIdBitmap posting : required) {
+            result = result == null ? posting.copy() : PageIdBitmap.and(result, posting);
+        }
+        for (String tag : filter.getNoneOf()) {
+            if (result.isEmpty()) {
+                break;
+            }
+            result = PageIdBitmap.andNot(result, posting(tag));
+        }
+        return new Selection(result);
+    }
+
+    public synchronized int getPageCount() {
+        return pageIds.size();
+    }
+
+    public synchronized int getTagCount() {
+        return postings.size();
+    }
+
+    private PageIdBitmap posting(String tag) {
+        PageIdBitmap posting = postings.get(tag);
+        return posting == null ? new PageIdBitmap() : posting;
+    }
+
+    /**
+     * Result of a tag filter. The page IDs are fixed when the filter is evaluated, their paths are
+     * looked up in the index; pages removed since then are skipped.
+     */
+    public final class Selection {
+
+        private final PageIdBitmap pages;
+
+        private Selection(PageIdBitmap pages) {
+            this.pages = pages;
+        }
+
+        public int getCount() {
+            return pages.getCardinality();
+        }
+
+        public boolean contains(String pagePath) {
+            Integer id;
+            synchronized (TagBitmapIndex.this) {
+                id = pageIds.get(pagePath);
+            }
+            return id != null && pages.contains(id);
+        }
+
+        /**
+         * Returns the selected pages at or below the given path, sorted by path.
+         */
+        public List<String> getPaths(String root) {
+            String normalized = PagePaths.normalize(root);
+            List<String> paths = new ArrayList<>();
+            synchronized (TagBitmapIndex.this) {
+                for (PrimitiveIterator.OfInt ids = pages.iterator(); ids.hasNext(); ) {
+                    int id = ids.nextInt();
+                    String path = id < pagePaths.size() ? pagePaths.get(id) : null;
+                    if (path != null && PagePaths.isSameOrDescendant(normalized, path)) {
+                        paths.add(path);
+                    }
+                }
+            }
+            Collections.sort(paths);
+            return paths;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.config.TagFacetIndexConfig;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * In-memory index of the {@code cq:tags} used below each page, kept current from resource change
+ * events so that tag listings do not have to query and load every page of a subtree.
+ *
+ * <p>For every indexed page the index remembers its tags, and for every ancestor page below a
+ * configured root it keeps the number of descendant pages carrying each tag. A lookup for a path
+ * therefore returns the same tags as a QueryBuilder {@code path} query over that subtree. The
+ * pages per tag are also kept in a {@link TagBitmapIndex} to answer AND, OR and NOT tag filters.</p>
+ */
+@Component(service = {TagFacetIndex.class, ResourceChangeListener.class},
+        immediate = true,
+        property = {
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        }
+)
+@Designate(ocd = TagFacetIndexConfig.class)
+public class TagFacetIndex implements ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TagFacetIndex.class);
+
+    private static final String TAGS_PROPERTY = "cq:tags";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private Scheduler scheduler;
+
+    private final ConcurrentSkipListMap<String, Set<String>> pageTags = new ConcurrentSkipListMap<>();
+    private final Map<String, ConcurrentHashMap<String, Integer>> subtreeCounts = new ConcurrentHashMap<>();
+    private final TagBitmapIndex tagBitmapIndex = new TagBitmapIndex();
+
+    private volatile String[] rootPaths = new String[0];
+    private volatile String[] publicPaths = new String[0];
+    private volatile boolean ready;
+
+    @Activate
+    @Modified
+    protected void activate(TagFacetIndexConfig config) {
+        List<String> roots = new ArrayList<>();
+        for (String root : config.resource_paths()) {
+            roots.add(PagePaths.normalize(root));
+        }
+        this.rootPaths = roots.toArray(new String[0]);
+        List<String> publicRoots = new ArrayList<>();
+        for (String path : config.public_paths()) {
+            publicRoots.add(PagePaths.normalize(path));
+        }
+        this.publicPaths = publicRoots.toArray(new String[0]);
+        LOG.info("Tag facet index activated for roots: {}, public paths: {}", roots, publicRoots);
+        if (config.rebuildOnStartup()) {
+            scheduler.schedule((Runnable) this::rebuild, scheduler.NOW().name("TagFacetIndexRebuild").canRunConcurrently(false));
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        ready = false;
+        clear();
+    }
+
+    /**
+     * Returns true once the index has been built and the path lies below one of its roots.
+     */
+    public boolean covers(String path) {
+        if (!ready || path == null) {
+            return false;
+        }
+        String normalized = PagePaths.normalize(path);
+        for (String root : rootPaths) {
+            if (PagePaths.isSameOrDescendant(root, normalized)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the path is covered and lies below a configured public path. The index is
+     * read with a service user, so tags and counts may only be returned to a request without a
+     * query in its own session when every user can read the whole subtree.
+     */
+    public boolean coversPublic(String path) {
+        if (!covers(path)) {
+            return false;
+        }
+        String normalized = PagePaths.normalize(path);
+        for (String publicPath : publicPaths) {
+            if (PagePaths.isSameOrDescendant(publicPath, normalized)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the tags used by the pages below the given path.
+     */
+    public Set<String> getTags(String path) {
+        Map<String, Integer> counts = subtreeCounts.get(PagePaths.normalize(path));
+        return counts == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(counts.keySet());
+    }
+
+    /**
+     * Returns, per tag, the number of pages below the given path that carry it.
+     */
+    public Map<String, Integer> getTagCounts(String path) {
+        Map<String, Integer> counts = subtreeCounts.get(PagePaths.normalize(path));
+        return counts == null ? Collections.<String, Integer>emptyMap() : Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Returns the tags of a single indexed page.
+     */
+    public Set<String> getPageTags(String pagePath) {
+        Set<String> tags = pageTags.get(pagePath);
+        return tags == null ? Collections.<String>emptySet() : tags;
+    }
+
+    /**
+     * Returns the indexed pages matching a tag filter, or null if the filter has no required tags.
+     * Callers restrict the selection to their search root and check read access themselves.
+     */
+    public TagBitmapIndex.Selection select(TagFilter filter) {
+        return tagBitmapIndex.select(filter);
+    }
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        Set<String> removed = new LinkedHashSet<>();
+        Set<String> refreshed = new LinkedHashSet<>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            if (change.getType() == ResourceChange.ChangeType.REMOVED && !PagePaths.isContentPath(path)) {
+                removed.add(PagePaths.normalize(path));
+            } else {
+                refreshed.add(PagePaths.toPagePath(path));
+            }
+        }
+
+        for (String path : removed) {
+            removeSubtree(path);
+        }
+        if (refreshed.isEmpty()) {
+            return;
+        }
+
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            for (String pagePath : refreshed) {
+                if (!isUnderRoot(pagePath)) {
+                    continue;
+                }
+                Resource page = resolver.getResource(pagePath);
+                if (page == null || !page.isResourceType(NameConstants.NT_PAGE)) {
+                    updatePage(pagePath, Collections.<String>emptySet());
+                } else {
+                    updatePage(pagePath, readTags(page));
+                }
+            }
+        } catch (LoginException e) {
+            LOG.error("Error obtaining service ResourceResolver, tag index may be stale: ", e);
+        }
+    }
+
+    /**
+     * Drops the current state and reloads the tags of every tagged page below the configured roots.
+     */
+    public void rebuild() {
+        ready = false;
+        long start = System.currentTimeMillis();
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            Session session = resolver.adaptTo(Session.class);
+            clear();
+            for (String root : rootPaths) {
+                Map<String, String> queryMap = new HashMap<>();
+                queryMap.put("path", root);
+                queryMap.put("type", NameConstants.NT_PAGE);
+                queryMap.put("property", PagePaths.JCR_CONTENT + "/" + TAGS_PROPERTY);
+                queryMap.put("property.operation", "exists");
+                queryMap.put("p.limit", "-1");
+                queryMap.put("p.guessTotal", "true");
+
+                Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
+                SearchResult result = query.getResult();
+                for (Hit hit : result.getHits()) {
+                    updatePage(hit.getPath(), readTags(hit.getResource()));
+                }
+            }
+            ready = true;
+            LOG.info("Tag facet index rebuilt with {} tagged pages in {} ms", pageTags.size(),
+                    System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            LOG.error("Error rebuilding tag facet index: ", e);
+        }
+    }
+
+    /**
+     * Replaces the tags recorded for a page and adjusts the counts of all its ancestors.
+     */
+    synchronized void updatePage(String pagePath, Set<String> tags) {
+        Set<String> previous = tags.isEmpty() ? pageTags.remove(pagePath) : pageTags.put(pagePath, tags);
+        if (previous != null) {
+            adjustAncestors(pagePath, previous, -1);
+        }
+        adjustAncestors(pagePath, tags, 1);
+        tagBitmapIndex.updatePage(pagePath, previous == null ? Collections.<String>emptySet() : previous, tags);
+    }
+
+    private void removeSubtree(String path) {
+        List<String> pages = new ArrayList<>();
+        if (pageTags.containsKey(path)) {
+            pages.add(path);
+        }
+        pages.addAll(pageTags.subMap(path + "/", PagePaths.descendantUpperBound(path)).keySet());
+        for (String pagePath : pages) {
+            updatePage(pagePath, Collections.<String>emptySet());
+        }
+    }
+
+    private void adjustAncestors(String pagePath, Set<String> tags, int delta) {
+        if (tags.isEmpty()) {
+            return;
+        }
+        String ancestor = pagePath;
+        int index;
+        while ((index = ancestor.lastIndexOf('/')) > 0) {
+            ancestor = ancestor.substring(0, index);
+            if (!isUnderRoot(ancestor)) {
+                break;
+            }
+            ConcurrentHashMap<String, Integer> counts = subtreeCounts.computeIfAbsent(ancestor, key -> new ConcurrentHashMap<>());
+            for (String tag : tags) {
+                counts.merge(tag, delta, (current, change) -> current + change <= 0 ? null : current + change);
+            }
+            if (counts.isEmpty()) {
+                subtreeCounts.remove(ancestor);
+            }
+        }
+    }
+
+    private boolean isUnderRoot(String path) {
+        for (String root : rootPaths) {
+            if (PagePaths.isSameOrDescendant(root, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void clear() {
+        pageTags.clear();
+        subtreeCounts.clear();
+        tagBitmapIndex.clear();
+    }
+
+    private Set<String> readTags(Resource page) {
+        Resource content = page.getChild(PagePaths.JCR_CONTENT);
+        String[] tags = content == null ? null : content.getValueMap().get(TAGS_PROPERTY, String[].class);
+        if (tags == null || tags.length == 0) {
+            return Collections.emptySet();
+        }
+        Set<String> tagSet = new HashSet<>();
+        Collections.addAll(tagSet, tags);
+        return Collections.unmodifiableSet(tagSet);
+    }
+
+    private ResourceResolver getServiceResourceResolver() throws LoginException {
+        Map<String, Object> authInfo = new HashMap<>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
+        return resolverFactory.getServiceResourceResolver(authInfo);
+    }
+}
@@ -0,0 +1,19 @@
+package com.adobe.practise.website.core.search.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Tag Facet Index Configuration")
+public @interface TagFacetIndexConfig {
+
+    @AttributeDefinition(name = "Root Paths", description = "Subtrees whose page tags are kept in the index")
+    String[] resource_paths() default {"/content"};
+
+    @AttributeDefinition(name = "Public Paths", description = "Subtrees every user can read, without ACL restrictions or"
+            + " closed user groups below them. Only requests below these paths are answered from the index; all"
+            + " other requests run a query with the caller's session")
+    String[] public_paths() default {};
+
+    @AttributeDefinition(name = "Rebuild On Startup", description = "Rebuild the index from the repository when the component starts")
+    boolean rebuildOnStartup() default true;
+}
@@ -0,0 +1,97 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Tag restriction of a search request: pages must carry at least one of the {@code anyOf} tags,
+ * all of the {@code allOf} tags and none of the {@code noneOf} tags.
+ *
+ * <p>Each list is trimmed, de-duplicated and sorted, so that the order in which tags are passed
+ * does not change the result or the cache key.</p>
+ */
+public final class TagFilter {
+
+    private final List<String> anyOf;
+    private final List<String> allOf;
+    private final List<String> noneOf;
+
+    private TagFilter(List<String> anyOf, List<String> allOf, List<String> noneOf) {
+        this.anyOf = anyOf;
+        this.allOf = allOf;
+        this.noneOf = noneOf;
+    }
+
+    /**
+     * Creates a filter from comma separated tag lists, any of which may be null.
+     */
+    public static TagFilter parse(String anyOf, String allOf, String noneOf) {
+        return new TagFilter(split(anyOf), split(allOf), split(noneOf));
+    }
+
+    public List<String> getAnyOf() {
+        return anyOf;
+    }
+
+    public List<String> getAllOf() {
+        return allOf;
+    }
+
+    public List<String> getNoneOf() {
+        return noneOf;
+    }
+
+    public boolean isEmpty() {
+        return anyOf.isEmpty() && allOf.isEmpty() && noneOf.isEmpty();
+    }
+
+    /**
+     * Returns true if the filter names at least one tag a page must carry. Filters with only
+     * excluded tags match untagged pages too, which the tag index does not know about.
+     */
+    public boolean hasRequiredTags() {
+        return !anyOf.isEmpty() || !allOf.isEmpty();
+    }
+
+    /**
+     * Returns true if a page with the given tags passes the filter.
+     */
+    public boolean matches(Iterable<String> pageTags) {
+        boolean any = anyOf.isEmpty();
+        int all = 0;
+        for (String tag : pageTags) {
+            if (noneOf.contains(tag)) {
+                return false;
+            }
+            any |= anyOf.contains(tag);
+            if (allOf.contains(tag)) {
+                all++;
+            }
+        }
+        return any && all == allOf.size();
+    }
+
+    /**
+     * Joins the tags for use in a cache key, or returns null if there are none.
+     */
+    public static String join(List<String> tags) {
+        return tags.isEmpty() ? null : StringUtils.join(tags, ',');
+    }
+
+    private static List<String> split(String tags) {
+        if (StringUtils.isBlank(tags)) {
+            return Collections.emptyList();
+        }
+        TreeSet<String> tagSet = new TreeSet<>();
+        for (String tag : tags.split(",")) {
+            if (StringUtils.isNotBlank(tag)) {
+                tagSet.add(tag.trim());
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(tagSet));
+    }
+}
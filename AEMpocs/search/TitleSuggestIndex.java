@@ -0,0 +1,274 @@
+package com.adobe.practise.website.core.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.practise.website.core.search.config.TitleSuggestIndexConfig;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * Sorted in-memory index of page titles for typeahead suggestions.
+ *
+ * <p>Every page is stored once per lower cased word of its {@code jcr:title} and once for the whole
+ * title, so a prefix lookup is a range scan over a sorted map. The index is rebuilt on startup and
+ * kept current from resource change events.</p>
+ */
+@Component(service = {TitleSuggestIndex.class, ResourceChangeListener.class},
+        immediate = true,
+        property = {
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED",
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        }
+)
+@Designate(ocd = TitleSuggestIndexConfig.class)
+public class TitleSuggestIndex implements ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TitleSuggestIndex.class);
+
+    private static final String TITLE_PROPERTY = "jcr:title";
+
+    /** Separates the token from the page path in the index keys. */
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /** Upper bound of index entries looked at per lookup, so that short prefixes stay cheap. */
+    private static final int MAX_SCANNED = 10000;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private Scheduler scheduler;
+
+    private final ConcurrentSkipListMap<String, Suggestion> tokens = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, String> pageTitles = new ConcurrentSkipListMap<>();
+
+    private volatile String[] rootPaths = new String[0];
+    private volatile boolean ready;
+
+    @Activate
+    @Modified
+    protected void activate(TitleSuggestIndexConfig config) {
+        List<String> roots = new ArrayList<>();
+        for (String root : config.resource_paths()) {
+            roots.add(PagePaths.normalize(root));
+        }
+        this.rootPaths = roots.toArray(new String[0]);
+        LOG.info("Title suggest index activated for roots: {}", roots);
+        if (config.rebuildOnStartup()) {
+            scheduler.schedule((Runnable) this::rebuild, scheduler.NOW().name("TitleSuggestIndexRebuild").canRunConcurrently(false));
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        ready = false;
+        clear();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Returns up to {@code limit} pages below the root with a title or title word starting with the prefix
+     * that are accepted by the filter. The index is built with a service user, so callers pass a filter
+     * checking that the requesting user can read each page; rejected pages do not count towards the limit.
+     */
+    public List<Suggestion> suggest(String rootPath, String prefix, int limit, Predicate<String> readable) {
+        String root = PagePaths.normalize(rootPath);
+        String from = prefix.toLowerCase(Locale.ROOT);
+        Map<String, Suggestion> matches = new LinkedHashMap<>();
+        Set<String> rejected = new HashSet<>();
+        int scanned = 0;
+        for (Suggestion suggestion : tokens.subMap(from, from + Character.MAX_VALUE).values()) {
+            if (matches.size() >= limit || ++scanned > MAX_SCANNED) {
+                break;
+            }
+            String path = suggestion.getPath();
+            if (!PagePaths.isSameOrDescendant(root, path) || matches.containsKey(path) || rejected.contains(path)) {
+                continue;
+            }
+            if (readable.test(path)) {
+                matches.put(path, suggestion);
+            } else {
+                rejected.add(path);
+            }
+        }
+        return new ArrayList<>(matches.values());
+    }
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        Set<String> removed = new LinkedHashSet<>();
+        Set<String> refreshed = new LinkedHashSet<>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            if (change.getType() == ResourceChange.ChangeType.REMOVED && !PagePaths.isContentPath(path)) {
+                removed.add(PagePaths.normalize(path));
+            } else {
+                refreshed.add(PagePaths.toPagePath(path));
+            }
+        }
+
+        for (String path : removed) {
+            removeSubtree(path);
+        }
+        if (refreshed.isEmpty()) {
+            return;
+        }
+
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            for (String pagePath : refreshed) {
+                if (!isUnderRoot(pagePath)) {
+                    continue;
+                }
+                Resource page = resolver.getResource(pagePath);
+                if (page == null || !page.isResourceType(NameConstants.NT_PAGE)) {
+                    updatePage(pagePath, null);
+                } else {
+                    updatePage(pagePath, readTitle(page));
+                }
+            }
+        } catch (LoginException e) {
+            LOG.error("Error obtaining service ResourceResolver, suggest index may be stale: ", e);
+        }
+    }
+
+    /**
+     * Drops the current state and reloads the titles of all pages below the configured roots.
+     */
+    public void rebuild() {
+        ready = false;
+        long start = System.currentTimeMillis();
+        try (ResourceResolver resolver = getServiceResourceResolver()) {
+            Session session = resolver.adaptTo(Session.class);
+            clear();
+            for (String root : rootPaths) {
+                Map<String, String> queryMap = new HashMap<>();
+                queryMap.put("path", root);
+                queryMap.put("type", NameConstants.NT_PAGE);
+                queryMap.put("property", PagePaths.JCR_CONTENT + "/" + TITLE_PROPERTY);
+                queryMap.put("property.operation", "exists");
+                queryMap.put("p.limit", "-1");
+                queryMap.put("p.guessTotal", "true");
+
+                Query query = queryBuilder.createQuery(PredicateGroup.create(queryMap), session);
+                SearchResult result = query.getResult();
+                for (Hit hit : result.getHits()) {
+                    updatePage(hit.getPath(), readTitle(hit.getResource()));
+                }
+            }
+            ready = true;
+            LOG.info("Title suggest index rebuilt with {} pages in {} ms", pageTitles.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            LOG.error("Error rebuilding title suggest index: ", e);
+        }
+    }
+
+    /**
+     * Replaces the title recorded for a page, a null or blank title removes the page from the index.
+     */
+    synchronized void updatePage(String pagePath, String title) {
+        String previous = StringUtils.isBlank(title) ? pageTitles.remove(pagePath) : pageTitles.put(pagePath, title);
+        if (previous != null) {
+            for (String token : tokenize(previous)) {
+                tokens.remove(token + KEY_SEPARATOR + pagePath);
+            }
+        }
+        if (StringUtils.isNotBlank(title)) {
+            Suggestion suggestion = new Suggestion(pagePath, title);
+            for (String token : tokenize(title)) {
+                tokens.put(token + KEY_SEPARATOR + pagePath, suggestion);
+            }
+        }
+    }
+
+    private void removeSubtree(String path) {
+        List<String> pages = new ArrayList<>();
+        if (pageTitles.containsKey(path)) {
+            pages.add(path);
+        }
+        pages.addAll(pageTitles.subMap(path + "/", PagePaths.descendantUpperBound(path)).keySet());
+        for (String pagePath : pages) {
+            updatePage(pagePath, null);
+        }
+    }
+
+    /**
+     * Returns the lower cased full title and each of its words.
+     */
+    private Set<String> tokenize(String title) {
+        Set<String> result = new LinkedHashSet<>();
+        String normalized = title.trim().toLowerCase(Locale.ROOT);
+        result.add(normalized);
+        for (String word : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+    private boolean isUnderRoot(String path) {
+        for (String root : rootPaths) {
+            if (PagePaths.isSameOrDescendant(root, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void clear() {
+        tokens.clear();
+        pageTitles.clear();
+    }
+
+    private String readTitle(Resource page) {
+        Resource content = page.getChild(PagePaths.JCR_CONTENT);
+        return content == null ? null : content.getValueMap().get(TITLE_PROPERTY, String.class);
+    }
+
+    private ResourceResolver getServiceResourceResolver() throws LoginException {
+        Map<String, Object> authInfo = new HashMap<>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, "Approver");
+        return resolverFactory.getServiceResourceResolver(authInfo);
+    }
+}
@@ -0,0 +1,14 @@
+package com.adobe.practise.website.core.search.config;
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Title Suggest Index Configuration")
+public @interface TitleSuggestIndexConfig {
+
+    @AttributeDefinition(name = "Root Paths", description = "Subtrees whose page titles are offered as suggestions")
+    String[] resource_paths() default {"/content"};
+
+    @AttributeDefinition(name = "Rebuild On Startup", description = "Rebuild the index from the repository when the component starts")
+    boolean rebuildOnStartup() default true;
+}